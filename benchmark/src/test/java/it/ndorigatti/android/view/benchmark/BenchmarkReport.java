@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright (C) 2014 Nicola Dorigatti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package it.ndorigatti.android.view.benchmark;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Minimal measuring loop with a machine readable report.
+ * <p>
+ * Every benchmark runs a few warmup iterations, then a fixed number of measured iterations of
+ * <tt>opsPerIteration</tt> operations each; the report keeps the min, median and mean
+ * nanoseconds per operation over the measured iterations. Latencies, such as frame times, are
+ * recorded sample by sample and reported as a distribution instead. Reports are JSON files, one per
+ * benchmark class, tagged with the library version so that two runs can be diffed.
+ * </p>
+ */
+final class BenchmarkReport {
+    static final int WARMUP_ITERATIONS = 5;
+    static final int MEASURED_ITERATIONS = 10;
+
+    private final String mName;
+    private final JSONArray mResults = new JSONArray();
+
+    BenchmarkReport(String name) {
+        mName = name;
+    }
+
+    /**
+     * Runs <tt>op</tt> and records its cost per operation.
+     *
+     * @return the recorded result, to attach extra metrics to
+     */
+    Result measure(String benchmark, int opsPerIteration, Op op) throws Exception {
+        return measure(benchmark, WARMUP_ITERATIONS, MEASURED_ITERATIONS, opsPerIteration, op);
+    }
+
+    Result measure(String benchmark, int warmupIterations, int measuredIterations,
+                   int opsPerIteration, Op op) throws Exception {
+        for (int i = 0; i < warmupIterations; i++) {
+            op.run(opsPerIteration);
+        }
+        final double[] nanosPerOp = new double[measuredIterations];
+        for (int i = 0; i < measuredIterations; i++) {
+            final long start = System.nanoTime();
+            op.run(opsPerIteration);
+            nanosPerOp[i] = (System.nanoTime() - start) / (double) opsPerIteration;
+        }
+        final Result result = new Result(benchmark, opsPerIteration, nanosPerOp);
+        mResults.put(result.mJson);
+        return result;
+    }
+
+    /**
+     * Records a result measured by the caller, e.g. a wall clock over several threads.
+     */
+    Result record(String benchmark, int opsPerIteration, double[] nanosPerOp) throws JSONException {
+        final Result result = new Result(benchmark, opsPerIteration, nanosPerOp);
+        mResults.put(result.mJson);
+        return result;
+    }
+
+    /**
+     * Records the distribution of individually timed samples, e.g. the duration of every UI
+     * frame of a run: median, 99th percentile and max, in nanoseconds. A run without samples,
+     * e.g. one that drew no frame, is recorded with zeros.
+     */
+    Result distribution(String benchmark, long[] samples, int count) throws JSONException {
+        final long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        double sum = 0;
+        for (long value : sorted) {
+            sum += value;
+        }
+        final long median = count > 0 ? sorted[count / 2] : 0;
+        final long p99 = count > 0 ? sorted[Math.min(count - 1, (int) (count * 0.99))] : 0;
+        final Result result = new Result(benchmark, median, p99, count);
+        result.mJson.put("samples", count);
+        result.mJson.put("nsMedian", median);
+        result.mJson.put("nsP99", p99);
+        result.mJson.put("nsMax", count > 0 ? sorted[count - 1] : 0);
+        result.mJson.put("nsMean", count > 0 ? sum / count : 0);
+        mResults.put(result.mJson);
+        return result;
+    }
+
+    /**
+     * Writes the report to <tt>build/benchmark-results/&lt;name&gt;.json</tt>, relative to the
+     * module directory the test task runs in.
+     */
+    File write(String libraryVersion) throws JSONException, IOException {
+        final JSONObject report = new JSONObject();
+        report.put("benchmark", mName);
+        report.put("libraryVersion", libraryVersion);
+        report.put("timestamp", System.currentTimeMillis());
+        report.put("java", System.getProperty("java.version"));
+        report.put("vm", System.getProperty("java.vm.name"));
+        report.put("os", System.getProperty("os.name") + " " + System.getProperty("os.arch"));
+        report.put("processors", Runtime.getRuntime().availableProcessors());
+        report.put("results", mResults);
+
+        final File dir = new File("build/benchmark-results");
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir.getAbsolutePath());
+        }
+        final File file = new File(dir, mName + ".json");
+        final Writer out = new FileWriter(file);
+        try {
+            out.write(report.toString(2));
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    /**
+     * The operation being measured.
+     */
+    interface Op {
+        /**
+         * Performs <tt>ops</tt> operations.
+         */
+        void run(int ops) throws Exception;
+    }
+
+    static final class Result {
+        private final JSONObject mJson = new JSONObject();
+        private final Map<String, Object> mMetrics = new LinkedHashMap<String, Object>();
+
+        Result(String benchmark, long median, long p99, int count) throws JSONException {
+            mJson.put("name", benchmark);
+            System.out.println(String.format("%-40s %12d ns median, %d ns p99 (%d samples)",
+                    benchmark, median, p99, count));
+        }
+
+        Result(String benchmark, int opsPerIteration, double[] nanosPerOp) throws JSONException {
+            final double[] sorted = nanosPerOp.clone();
+            Arrays.sort(sorted);
+            double sum = 0;
+            for (double value : sorted) {
+                sum += value;
+            }
+            final double median = sorted[sorted.length / 2];
+            mJson.put("name", benchmark);
+            mJson.put("iterations", sorted.length);
+            mJson.put("opsPerIteration", opsPerIteration);
+            mJson.put("nsPerOpMin", sorted[0]);
+            mJson.put("nsPerOpMedian", median);
+            mJson.put("nsPerOpMean", sum / sorted.length);
+            mJson.put("opsPerSecond", median > 0 ? 1e9 / median : 0);
+            System.out.println(String.format("%-40s %12.1f ns/op (median of %d)",
+                    benchmark, median, sorted.length));
+        }
+
+        /**
+         * Attaches a benchmark specific figure, such as the number of refresh passes.
+         */
+        Result metric(String name, double value) throws JSONException {
+            mMetrics.put(name, value);
+            mJson.put("metrics", new JSONObject(mMetrics));
+            return this;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*******************************************************************************
+ * Copyright (C) 2014 Nicola Dorigatti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package it.ndorigatti.android.view.benchmark;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import it.ndorigatti.android.view.FrameScheduler;
+
+/**
+ * Frame scheduler driven by hand, so that a benchmark decides when frames happen and can count
+ * how many were requested.
+ */
+final class ManualFrameScheduler extends FrameScheduler {
+    private final AtomicInteger mTicks = new AtomicInteger();
+    private long mFrameTimeNanos;
+
+    @Override
+    protected void scheduleTick() {
+        mTicks.incrementAndGet();
+    }
+
+    /**
+     * Dispatches one frame, 16 ms after the previous one. Must be called on the UI thread.
+     */
+    void frame() {
+        mFrameTimeNanos += 16000000L;
+        dispatchFrame(mFrameTimeNanos);
+    }
+
+    /**
+     * Returns how many frames were requested since the last reset, i.e. how many refresh
+     * passes the posted updates were coalesced into.
+     */
+    int getTickCount() {
+        return mTicks.get();
+    }
+
+    void resetTickCount() {
+        mTicks.set(0);
+    }
+}
@@ -0,0 +1,405 @@
+/*******************************************************************************
+ * Copyright (C) 2014 Nicola Dorigatti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package it.ndorigatti.android.view.benchmark;
+
+import android.app.Activity;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.view.LayoutInflater;
+import android.view.View;
+
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import it.ndorigatti.android.view.MulticolorProgressBar;
+import it.ndorigatti.android.view.MulticolorProgressBarSpec;
+
+/**
+ * Hot paths of {@link MulticolorProgressBar}, measured on the local JVM.
+ * <p>
+ * Robolectric stands in for the Android runtime: view code runs for real, while canvas and
+ * paint calls end in shadows. Absolute numbers are therefore not device numbers, but the Java
+ * side of every path is exercised and runs of two library versions on the same machine can be
+ * compared. Frames are dispatched by hand through a {@link ManualFrameScheduler}. Contention
+ * is reported as the distribution of UI frame times while writer threads publish progress.
+ * </p>
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(emulateSdk = 18)
+public class MulticolorProgressBarBenchmark {
+    private static final int WIDTH = 1080;
+    private static final int HEIGHT = 48;
+    private static final int MAX = 10000;
+    private static final int FRAME_EVERY = 256;
+    private static final int THREADS = 4;
+    private static final int[] WRITER_COUNTS = {1, 2, 4};
+    private static final int[] BAR_COUNTS = {1, 50, 500};
+
+    private static BenchmarkReport sReport;
+
+    private Activity mActivity;
+    private MulticolorProgressBar mBar;
+    private ManualFrameScheduler mScheduler;
+    private int[] mValues;
+    private Canvas mCanvas;
+    /**
+     * Duration of every UI frame of the last {@link #runWorkers} run.
+     */
+    private long[] mFrameNanos = new long[1 << 16];
+    private int mFrameCount;
+
+    @BeforeClass
+    public static void createReport() {
+        sReport = new BenchmarkReport("MulticolorProgressBar");
+    }
+
+    @AfterClass
+    public static void writeReport() throws Exception {
+        System.out.println("Benchmark results written to "
+                + sReport.write(BuildConfig.LIBRARY_VERSION).getAbsolutePath());
+    }
+
+    @Before
+    public void setUp() {
+        mActivity = Robolectric.buildActivity(Activity.class).create().start().resume().visible().get();
+        mScheduler = new ManualFrameScheduler();
+        mCanvas = new Canvas(Bitmap.createBitmap(WIDTH, HEIGHT, Bitmap.Config.ARGB_8888));
+        mBar = newBar(MulticolorProgressBar.RENDER_MODE_DRAWABLE);
+        // consecutive values move the progress edge by a few pixels, so no update is suppressed
+        mValues = new int[1024];
+        for (int i = 0; i < mValues.length; i++) {
+            mValues[i] = (i * 37) % MAX;
+        }
+    }
+
+    private MulticolorProgressBar newBar(int renderMode) {
+        return newBar(renderMode, true);
+    }
+
+    /**
+     * Creates a laid out bar driven by {@link #mScheduler}, optionally attached as the content
+     * view of the activity (replacing the previous one).
+     */
+    private MulticolorProgressBar newBar(int renderMode, boolean attach) {
+        final MulticolorProgressBar bar = new MulticolorProgressBar(mActivity);
+        bar.setFrameScheduler(mScheduler);
+        bar.setRenderMode(renderMode);
+        bar.setMax(MAX);
+        bar.setProgress(MAX / 4);
+        bar.setSecondaryProgress(MAX / 2);
+        if (attach) {
+            mActivity.setContentView(bar);
+        }
+        bar.measure(View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+                View.MeasureSpec.makeMeasureSpec(HEIGHT, View.MeasureSpec.EXACTLY));
+        bar.layout(0, 0, WIDTH, HEIGHT);
+        mScheduler.frame();
+        return bar;
+    }
+
+    @Test
+    public void setProgressSingleThread() throws Exception {
+        sReport.measure("setProgress/singleThread", 100000, new BenchmarkReport.Op() {
+            @Override
+            public void run(int ops) {
+                final int[] values = mValues;
+                for (int i = 0; i < ops; i++) {
+                    mBar.setProgress(values[i & 1023]);
+                    if ((i & (FRAME_EVERY - 1)) == FRAME_EVERY - 1) {
+                        mScheduler.frame();
+                    }
+                }
+                mScheduler.frame();
+            }
+        });
+    }
+
+    @Test
+    public void setSecondaryProgressSingleThread() throws Exception {
+        sReport.measure("setSecondaryProgress/singleThread", 100000, new BenchmarkReport.Op() {
+            @Override
+            public void run(int ops) {
+                final int[] values = mValues;
+                for (int i = 0; i < ops; i++) {
+                    mBar.setSecondaryProgress(values[i & 1023]);
+                    if ((i & (FRAME_EVERY - 1)) == FRAME_EVERY - 1) {
+                        mScheduler.frame();
+                    }
+                }
+                mScheduler.frame();
+            }
+        });
+    }
+
+    @Test
+    public void setProgressSuppressed() throws Exception {
+        // same pixel every time: the cheapest path, no refresh is ever posted
+        sReport.measure("setProgress/samePixel", 1000000, new BenchmarkReport.Op() {
+            @Override
+            public void run(int ops) {
+                for (int i = 0; i < ops; i++) {
+                    mBar.setProgress(MAX / 4 + (i & 1));
+                }
+                mScheduler.frame();
+            }
+        });
+    }
+
+    @Test
+    public void uiFrameTimeUnderWriters() throws Exception {
+        // what the user sees under contention: how long each UI frame (refresh pass plus
+        // draw) takes while N threads keep publishing progress
+        final int opsPerThread = 50000;
+        for (int writers : WRITER_COUNTS) {
+            runWorkers(writers, opsPerThread, true);
+            final long nanos = runWorkers(writers, opsPerThread, true);
+            sReport.distribution("uiFrame/writers=" + writers, mFrameNanos, mFrameCount)
+                    .metric("writerNsPerOp", nanos / (double) (opsPerThread * writers));
+        }
+    }
+
+    @Test
+    public void refreshCoalescing() throws Exception {
+        final int opsPerThread = 50000;
+        runWorkers(THREADS, opsPerThread, false);
+        mScheduler.resetTickCount();
+        final long suppressedBefore = mBar.getSuppressedUpdateCount();
+        final long nanos = runWorkers(THREADS, opsPerThread, false);
+        final int updates = opsPerThread * THREADS;
+        final int ticks = Math.max(mScheduler.getTickCount(), 1);
+        sReport.record("refreshCoalescing/threads=" + THREADS, updates,
+                new double[]{nanos / (double) updates})
+                .metric("refreshPasses", ticks)
+                .metric("updatesPerRefreshPass", updates / (double) ticks)
+                .metric("suppressedUpdates", mBar.getSuppressedUpdateCount() - suppressedBefore);
+    }
+
+    /**
+     * Hammers the bar from <tt>threads</tt> worker threads, half of them on the primary and
+     * half on the secondary progress, while this (UI) thread keeps dispatching frames. The
+     * duration of every frame is kept in {@link #mFrameNanos}.
+     *
+     * @param draw whether each frame also draws the bar
+     *
+     * @return the wall clock time, in nanoseconds
+     */
+    private long runWorkers(int threads, final int opsPerThread, boolean draw) throws InterruptedException {
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger(threads);
+        final Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final boolean secondary = (t & 1) != 0;
+            final int offset = t * 131;
+            workers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    final int[] values = mValues;
+                    for (int i = 0; i < opsPerThread; i++) {
+                        final int value = values[(i + offset) & 1023];
+                        if (secondary) {
+                            mBar.setSecondaryProgress(value);
+                        } else {
+                            mBar.setProgress(value);
+                        }
+                    }
+                    running.decrementAndGet();
+                }
+            });
+            workers[t].start();
+        }
+        mFrameCount = 0;
+        final long begin = System.nanoTime();
+        start.countDown();
+        while (running.get() > 0) {
+            final long frameStart = System.nanoTime();
+            mScheduler.frame();
+            if (draw) {
+                mBar.draw(mCanvas);
+            }
+            recordFrame(System.nanoTime() - frameStart);
+        }
+        final long elapsed = System.nanoTime() - begin;
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        mScheduler.frame();
+        return elapsed;
+    }
+
+    private void recordFrame(long nanos) {
+        if (mFrameCount == mFrameNanos.length) {
+            mFrameNanos = Arrays.copyOf(mFrameNanos, mFrameCount * 2);
+        }
+        mFrameNanos[mFrameCount++] = nanos;
+    }
+
+    @Test
+    public void orderFlip() throws Exception {
+        // both benchmarks move both edges every frame, only the first one swaps the layers
+        sReport.measure("orderFlip/flip", 20000, new BenchmarkReport.Op() {
+            @Override
+            public void run(int ops) {
+                for (int i = 0; i < ops; i++) {
+                    if ((i & 1) == 0) {
+                        mBar.setProgressValues(MAX, 2000, 6000);
+                    } else {
+                        mBar.setProgressValues(MAX, 6000, 2000);
+                    }
+                    mScheduler.frame();
+                }
+            }
+        });
+        sReport.measure("orderFlip/noFlip", 20000, new BenchmarkReport.Op() {
+            @Override
+            public void run(int ops) {
+                for (int i = 0; i < ops; i++) {
+                    if ((i & 1) == 0) {
+                        mBar.setProgressValues(MAX, 2000, 6000);
+                    } else {
+                        mBar.setProgressValues(MAX, 3000, 7000);
+                    }
+                    mScheduler.frame();
+                }
+            }
+        });
+    }
+
+    @Test
+    public void onDraw() throws Exception {
+        final Canvas canvas = mCanvas;
+
+        measureDraw("onDraw/drawable", mBar, canvas);
+
+        final MulticolorProgressBar cached = newBar(MulticolorProgressBar.RENDER_MODE_DRAWABLE);
+        cached.setBackgroundCacheEnabled(true);
+        measureDraw("onDraw/drawable+backgroundCache", cached, canvas);
+
+        measureDraw("onDraw/flat", newBar(MulticolorProgressBar.RENDER_MODE_FLAT), canvas);
+
+        final MulticolorProgressBar segments = newBar(MulticolorProgressBar.RENDER_MODE_FLAT);
+        segments.setSegments(new int[]{1000, 4000, 6000, 9000},
+                new int[]{Color.RED, Color.GREEN, Color.BLUE, Color.YELLOW});
+        mScheduler.frame();
+        measureDraw("onDraw/flat+4segments", segments, canvas);
+
+        final MulticolorProgressBar pieces = newBar(MulticolorProgressBar.RENDER_MODE_PIECE_MAP);
+        pieces.setPieceCount(4096);
+        for (int i = 0; i < 4096; i += 3) {
+            pieces.setPieceState(i, MulticolorProgressBar.PIECE_HAVE);
+        }
+        mScheduler.frame();
+        measureDraw("onDraw/pieceMap4096", pieces, canvas);
+    }
+
+    @Test
+    public void onDrawManyBars() throws Exception {
+        for (int count : BAR_COUNTS) {
+            measureBars("frame/drawable/bars=" + count, MulticolorProgressBar.RENDER_MODE_DRAWABLE, count);
+            measureBars("frame/flat/bars=" + count, MulticolorProgressBar.RENDER_MODE_FLAT, count);
+        }
+    }
+
+    /**
+     * Measures one frame of a screen with <tt>count</tt> bars: every bar gets a new progress,
+     * the frame is dispatched, then every bar is drawn.
+     */
+    private void measureBars(String name, int renderMode, int count) throws Exception {
+        final MulticolorProgressBar[] bars = new MulticolorProgressBar[count];
+        for (int i = 0; i < count; i++) {
+            bars[i] = newBar(renderMode, false);
+        }
+        sReport.measure(name, Math.max(20, 20000 / count), new BenchmarkReport.Op() {
+            @Override
+            public void run(int ops) {
+                final int[] values = mValues;
+                for (int i = 0; i < ops; i++) {
+                    for (int b = 0; b < bars.length; b++) {
+                        bars[b].setProgress(values[(i + b) & 1023]);
+                    }
+                    mScheduler.frame();
+                    for (MulticolorProgressBar bar : bars) {
+                        bar.draw(mCanvas);
+                    }
+                }
+            }
+        });
+    }
+
+    private void measureDraw(String name, final MulticolorProgressBar bar, final Canvas canvas)
+            throws Exception {
+        sReport.measure(name, 20000, new BenchmarkReport.Op() {
+            @Override
+            public void run(int ops) {
+                for (int i = 0; i < ops; i++) {
+                    bar.draw(canvas);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void construction() throws Exception {
+        sReport.measure("construct/defaultStyle", 2000, new BenchmarkReport.Op() {
+            @Override
+            public void run(int ops) {
+                for (int i = 0; i < ops; i++) {
+                    new MulticolorProgressBar(mActivity);
+                }
+            }
+        });
+
+        final LayoutInflater inflater = LayoutInflater.from(mActivity);
+        sReport.measure("construct/inflate", 2000, new BenchmarkReport.Op() {
+            @Override
+            public void run(int ops) {
+                for (int i = 0; i < ops; i++) {
+                    inflater.inflate(R.layout.benchmark_bar, null, false);
+                }
+            }
+        });
+
+        final MulticolorProgressBarSpec spec = new MulticolorProgressBarSpec.Builder()
+                .setMax(MAX)
+                .setProgress(MAX / 4)
+                .setSecondaryProgress(MAX / 2)
+                .build();
+        sReport.measure("construct/spec", 2000, new BenchmarkReport.Op() {
+            @Override
+            public void run(int ops) {
+                for (int i = 0; i < ops; i++) {
+                    spec.newBar(mActivity);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright (C) 2014 Nicola Dorigatti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package it.ndorigatti.android.view;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffColorFilter;
+
+/**
+ * <p>
+ * Process wide, bounded LRU cache of the {@link PorterDuff.Mode#SRC_ATOP SRC_ATOP} color
+ * filters used to tint progress layers, keyed by ARGB color. Filters are immutable, so one
+ * instance per color can be shared by every bar: bars cycling through a palette (e.g. colors
+ * animated by health status) stop allocating a filter on every color change.
+ * </p>
+ * <p>
+ * The cache is a pair of small parallel arrays scanned linearly, so a hit allocates nothing.
+ * Once full, the least recently used color is evicted. Thread safe.
+ * </p>
+ */
+final class ColorFilterCache {
+    private static final int CAPACITY = 64;
+
+    private static final int[] sColors = new int[CAPACITY];
+    private static final PorterDuffColorFilter[] sFilters = new PorterDuffColorFilter[CAPACITY];
+    private static final long[] sLastUse = new long[CAPACITY];
+    private static int sSize;
+    private static long sClock;
+
+    private ColorFilterCache() {
+    }
+
+    /**
+     * Returns the shared SRC_ATOP filter for the given color.
+     */
+    static synchronized PorterDuffColorFilter get(int color) {
+        final long now = ++sClock;
+        int oldest = 0;
+        for (int i = 0; i < sSize; i++) {
+            if (sColors[i] == color) {
+                sLastUse[i] = now;
+                return sFilters[i];
+            }
+            if (sLastUse[i] < sLastUse[oldest]) {
+                oldest = i;
+            }
+        }
+        final int slot = sSize < CAPACITY ? sSize++ : oldest;
+        final PorterDuffColorFilter filter = new PorterDuffColorFilter(color, PorterDuff.Mode.SRC_ATOP);
+        sColors[slot] = color;
+        sFilters[slot] = filter;
+        sLastUse[slot] = now;
+        return filter;
+    }
+}
@@ -0,0 +1,252 @@
+/*******************************************************************************
+ * Copyright (C) 2014 Nicola Dorigatti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package it.ndorigatti.android.view;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>
+ * Runs pending progress work at most once per frame. Callbacks posted between two frames are
+ * collected and dispatched together on the next tick, so a screen with many busy
+ * {@link MulticolorProgressBar}s does one refresh pass per bar per frame instead of one per
+ * posted update.
+ * </p>
+ * <p>
+ * The {@link #getDefault() default} scheduler is tied to the display vsync through
+ * {@link Choreographer} (or to a 16 ms grid on the main looper before Jelly Bean).
+ * {@link #fromExecutor(Executor)} runs ticks on any executor. Tests can subclass this class
+ * with an empty {@link #scheduleTick()} and drive frames by hand with
+ * {@link #dispatchFrame(long)}, using a fake clock.
+ * </p>
+ *
+ * @see MulticolorProgressBar#setFrameScheduler(FrameScheduler)
+ */
+public abstract class FrameScheduler {
+    private static FrameScheduler sDefault;
+
+    private final Object mLock = new Object();
+    private ArrayList<Callback> mPending = new ArrayList<Callback>();
+    private ArrayList<Callback> mDispatching = new ArrayList<Callback>();
+    /**
+     * The callbacks in {@link #mPending}, so that a repeated post is spotted without scanning
+     * the list: a screen full of bars posts once per bar per update.
+     */
+    private final IdentityHashMap<Callback, Boolean> mQueued = new IdentityHashMap<Callback, Boolean>();
+    private boolean mTickScheduled;
+    /**
+     * Set while callbacks run: ticks asked for in the meantime are scheduled once they are
+     * done, so that a synchronous clock cannot nest a dispatch into the running one.
+     */
+    private boolean mDispatchRunning;
+
+    /**
+     * <p>Returns the process wide scheduler bound to the main thread display frames.</p>
+     *
+     * @return the shared vsync aligned scheduler
+     */
+    public static synchronized FrameScheduler getDefault() {
+        if (sDefault == null) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+                sDefault = new ChoreographerFrameScheduler();
+            } else {
+                sDefault = new HandlerFrameScheduler();
+            }
+        }
+        return sDefault;
+    }
+
+    /**
+     * <p>Returns a scheduler that runs each tick on the given executor, stamped with
+     * {@link System#nanoTime()}.</p>
+     *
+     * @param executor the executor running the ticks, one at a time; callbacks touching views
+     *                 must be run on the UI thread
+     *
+     * @return a new scheduler
+     */
+    public static FrameScheduler fromExecutor(Executor executor) {
+        return new ExecutorFrameScheduler(executor);
+    }
+
+    /**
+     * <p>Runs the callback once, on the next frame. Posting a callback that is already
+     * waiting does nothing. Can be called from any thread.</p>
+     *
+     * @param callback the callback to run
+     */
+    public final void postFrameCallback(Callback callback) {
+        boolean schedule = false;
+        synchronized (mLock) {
+            if (mQueued.put(callback, Boolean.TRUE) == null) {
+                mPending.add(callback);
+            }
+            if (!mTickScheduled) {
+                mTickScheduled = true;
+                schedule = !mDispatchRunning;
+            }
+        }
+        if (schedule) {
+            scheduleTick();
+        }
+    }
+
+    /**
+     * <p>Removes a callback that is waiting for the next frame. Can be called from any
+     * thread.</p>
+     *
+     * @param callback the callback to remove
+     */
+    public final void removeFrameCallback(Callback callback) {
+        synchronized (mLock) {
+            if (mQueued.remove(callback) != null) {
+                mPending.remove(callback);
+            }
+        }
+    }
+
+    /**
+     * Asks the underlying clock for one call to {@link #dispatchFrame(long)}. Invoked at most
+     * once per frame, possibly from a worker thread.
+     */
+    protected abstract void scheduleTick();
+
+    /**
+     * Runs every callback posted since the previous frame. Callbacks posted while they run
+     * wait for the next tick, which is scheduled once they are all done. A nested call does
+     * nothing.
+     *
+     * @param frameTimeNanos the time of the frame, in the {@link System#nanoTime()} time base
+     */
+    protected final void dispatchFrame(long frameTimeNanos) {
+        final ArrayList<Callback> callbacks;
+        synchronized (mLock) {
+            if (mDispatchRunning) {
+                return;
+            }
+            mDispatchRunning = true;
+            callbacks = mPending;
+            mPending = mDispatching;
+            mDispatching = callbacks;
+            mQueued.clear();
+            mTickScheduled = false;
+        }
+        boolean schedule;
+        try {
+            final int count = callbacks.size();
+            for (int i = 0; i < count; i++) {
+                callbacks.get(i).doFrame(frameTimeNanos);
+            }
+        } finally {
+            callbacks.clear();
+            synchronized (mLock) {
+                mDispatchRunning = false;
+                schedule = mTickScheduled;
+            }
+        }
+        if (schedule) {
+            scheduleTick();
+        }
+    }
+
+    /**
+     * Work to be run on a frame.
+     */
+    public interface Callback {
+        /**
+         * Called once on the frame following {@link FrameScheduler#postFrameCallback(Callback)}.
+         *
+         * @param frameTimeNanos the time of the frame, in the {@link System#nanoTime()} time base
+         */
+        void doFrame(long frameTimeNanos);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private static class ChoreographerFrameScheduler extends FrameScheduler
+            implements Choreographer.FrameCallback, Runnable {
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+        private Choreographer mChoreographer;
+
+        @Override
+        protected void scheduleTick() {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                run();
+            } else {
+                // the Choreographer instance is thread local: fetch it from the main thread
+                mMainHandler.post(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            if (mChoreographer == null) {
+                mChoreographer = Choreographer.getInstance();
+            }
+            mChoreographer.postFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            dispatchFrame(frameTimeNanos);
+        }
+    }
+
+    private static class HandlerFrameScheduler extends FrameScheduler implements Runnable {
+        private static final long FRAME_MILLIS = 16;
+        private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+        @Override
+        protected void scheduleTick() {
+            final long now = SystemClock.uptimeMillis();
+            mMainHandler.postAtTime(this, now + FRAME_MILLIS - now % FRAME_MILLIS);
+        }
+
+        @Override
+        public void run() {
+            dispatchFrame(System.nanoTime());
+        }
+    }
+
+    private static class ExecutorFrameScheduler extends FrameScheduler implements Runnable {
+        private final Executor mExecutor;
+
+        ExecutorFrameScheduler(Executor executor) {
+            if (executor == null) {
+                throw new IllegalArgumentException("executor == null");
+            }
+            mExecutor = executor;
+        }
+
+        @Override
+        protected void scheduleTick() {
+            mExecutor.execute(this);
+        }
+
+        @Override
+        public void run() {
+            dispatchFrame(System.nanoTime());
+        }
+    }
+}
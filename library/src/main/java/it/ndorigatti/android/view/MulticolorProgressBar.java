@@ -17,19 +17,27 @@ package it.ndorigatti.android.view;
 
 import android.content.Context;
 import android.content.res.TypedArray;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
-import android.graphics.PorterDuff;
+import android.graphics.PorterDuffColorFilter;
 import android.graphics.drawable.Drawable;
 import android.graphics.drawable.LayerDrawable;
+import android.graphics.drawable.ScaleDrawable;
 import android.os.Parcel;
 import android.os.Parcelable;
-import android.support.v4.util.Pools;
 import android.util.AttributeSet;
 import android.view.View;
+import android.view.animation.AnimationUtils;
+import android.view.animation.DecelerateInterpolator;
+import android.view.animation.Interpolator;
 import android.widget.ProgressBar;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * <p>
@@ -54,12 +62,35 @@ import java.util.ArrayList;
  *     mcpb.setSecondaryProgressColor(getResources().getColor(android.R.color.holo_blue_dark));
  *     ... </pre>
  *
+ * <p>More than two values can be shown at once with {@link #setSegments(int[], int[])}, e.g.
+ * played / buffered / downloaded / verified: every segment has its own color and, as for
+ * the two progress values, lower values are drawn on top of the higher ones.</p>
+ *
+ * <p>Plain flat bars can skip the drawables altogether with the {@link #RENDER_MODE_FLAT flat}
+ * render mode: rectangles (or round rectangles) are painted directly with prebuilt paints.
+ * The same drawing is available without a View through {@link MulticolorProgressRenderer},
+ * to paint many bars on one canvas.</p>
+ *
+ * <p>P2P downloads can show the state of every piece instead of a single value with the
+ * {@link #RENDER_MODE_PIECE_MAP piece map} render mode, see {@link #setPieceCount(int)}.</p>
+ *
+ * <p>Bars created in code can skip the XML attribute resolution with a
+ * {@link MulticolorProgressBarSpec}.</p>
+ *
  * <p>You can then increment the  progress with {@link #incrementProgressBy(int)} or
  * {@link #setProgress(int)}. By default, the progress bar is full when it reaches 100. If
  * necessary, you can adjust the maximum value (the value for a full bar) using the {@link
  * R.styleable#MulticolorProgressBar_mcp_max mcpb:max} attribute. Other attributes available are listed
  * below.</p>
  *
+ * <p>Changes can be animated with {@link #setProgressAnimationDuration(long)}: the bar then
+ * glides from the shown values to the new ones, interpolated in the draw pass from the frame
+ * time.</p>
+ *
+ * <p>Values are 64-bit: {@link #setMax(long)}, {@link #setProgress(long)} and the other long
+ * overloads take raw byte counters of multi-gigabyte transfers as they are, and map them to
+ * pixels with exact integer arithmetic.</p>
+ *
  *
  * <p><strong>XML attributes</b></strong>
  * <p>
@@ -78,10 +109,83 @@ import java.util.ArrayList;
  * @attr ref R.styleable#MulticolorProgressBar_mcp_secondaryProgress
  * @attr ref R.styleable#MulticolorProgressBar_mcp_secondaryProgressColor
  * @attr ref R.styleable#MulticolorProgressBar_mcp_reversedProgressDrawable
+ * @attr ref R.styleable#MulticolorProgressBar_mcp_renderMode
+ * @attr ref R.styleable#MulticolorProgressBar_mcp_trackColor
+ * @attr ref R.styleable#MulticolorProgressBar_mcp_cornerRadius
+ * @attr ref R.styleable#MulticolorProgressBar_mcp_progressAnimationDuration
+ * @attr ref R.styleable#MulticolorProgressBar_mcp_cacheBackground
+ * @attr ref R.styleable#MulticolorProgressBar_mcp_maxRefreshRate
  */
 public class MulticolorProgressBar extends View {
+    /**
+     * Draws the bar with the progress drawables: a 9-patch background and tinted, scaled
+     * 9-patch layers. This is the default.
+     */
+    public static final int RENDER_MODE_DRAWABLE = 0;
+    /**
+     * Draws the bar as flat rectangles (or round rectangles) filled with prebuilt paints,
+     * skipping drawable levels, color filters and 9-patch stretching. Every pixel is painted
+     * once: each segment and the track only cover their visible span.
+     */
+    public static final int RENDER_MODE_FLAT = 1;
+    /**
+     * Draws the state of every piece of a P2P download instead of the progress values: had
+     * pieces with the progress color, pieces being downloaded with the secondary progress
+     * color and missing pieces with the track color.
+     *
+     * @see #setPieceCount(int)
+     */
+    public static final int RENDER_MODE_PIECE_MAP = 2;
+    /**
+     * State of a piece that is not available yet, see {@link #setPieceState(int, int)}.
+     */
+    public static final int PIECE_MISSING = PieceMap.MISSING;
+    /**
+     * State of a piece that is being downloaded, see {@link #setPieceState(int, int)}.
+     */
+    public static final int PIECE_DOWNLOADING = PieceMap.DOWNLOADING;
+    /**
+     * State of a piece that is available, see {@link #setPieceState(int, int)}.
+     */
+    public static final int PIECE_HAVE = PieceMap.HAVE;
     private static final int MAX_LEVEL = 10000;
-    private final ArrayList<RefreshData> mRefreshData = new ArrayList<RefreshData>();
+    private static final int ALL_SLOTS = (1 << ProgressState.MAX_SEGMENTS) - 1;
+    /**
+     * Segment values (progress, secondary progress, ...) and max, swapped atomically as one
+     * snapshot so that setters never block onDraw/onMeasure.
+     */
+    private final AtomicReference<ProgressState> mState = new AtomicReference<ProgressState>(ProgressState.DEFAULT);
+    /**
+     * Segments waiting to be refreshed on the UI thread, one slot per segment.
+     */
+    private final RefreshSlots mRefreshSlots = new RefreshSlots();
+    /**
+     * Pixel edge of every segment as of the last refresh pass, read by setters on any thread
+     * to drop updates that would not move anything on screen.
+     */
+    private final AtomicIntegerArray mRenderedEdges = new AtomicIntegerArray(ProgressState.MAX_SEGMENTS);
+    private volatile boolean mRenderedNormalOrder = true;
+    private final AtomicLong mSuppressedUpdates = new AtomicLong();
+    /**
+     * Opt-in activity counters, null when disabled.
+     */
+    private volatile ProgressBarMetrics mMetrics;
+    /**
+     * Names of this bar's trace counters, built the first time they are emitted.
+     */
+    private String mTracePendingCounter;
+    private String mTraceProgressCounter;
+    private volatile OnProgressChangeListener mOnProgressChangeListener;
+    /**
+     * Values last reported to {@link #mOnProgressChangeListener}, UI thread only.
+     */
+    private long mReportedProgress;
+    private long mReportedSecondaryProgress;
+    private boolean mReportedNormalOrder = true;
+    /**
+     * Width of the content area, i.e. the number of pixels the max maps to.
+     */
+    private volatile int mContentWidth;
     int mMinWidth;
     int mMaxWidth;
     int mMinHeight;
@@ -89,18 +193,116 @@ public class MulticolorProgressBar extends View {
     int mProgressColor;
     int mSecondaryProgressColor;
 
-    private int mProgress;
-    private int mSecondaryProgress;
-    private int mMax;
     private Drawable mProgressDrawable;
     private Drawable mCurrentDrawable;
     private Drawable mStraightDrawable;
+    /**
+     * Built on the first order flip from {@link #mReversedDrawableResId}, so that bars whose
+     * secondary progress never gets below the primary one never pay for it.
+     */
     private Drawable mReversedDrawable;
+    private int mReversedDrawableResId;
+    /**
+     * Straight drawable of a bar built from a spec in flat or piece map mode, loaded only if
+     * the bar is switched to drawable mode.
+     */
+    private int mStraightDrawableResId;
+    /**
+     * Set when the progress colors changed since they were last applied to the straight or
+     * reversed drawable. Colors are only applied to the drawable on screen, the other one
+     * catches up when it is swapped in.
+     */
+    private boolean mStraightColorsStale;
+    private boolean mReversedColorsStale;
+    /**
+     * Color order the drawn drawable was last picked for, see {@link #syncColorOrder()}.
+     */
+    private boolean mSyncedNormalOrder = true;
     private boolean mNoInvalidate;
-    private RefreshProgressRunnable mRefreshProgressRunnable;
+    private int[] mSegmentColors;
+    private PorterDuffColorFilter[] mSegmentFilters;
+    private final int[] mDrawOrder = new int[ProgressState.MAX_SEGMENTS];
+    /**
+     * Set while levels or filters are changed on purpose: the resulting drawable invalidations
+     * are either useless (while drawing) or replaced by a narrower one.
+     */
+    private boolean mSuppressDrawableInvalidation;
+    private int mRenderMode;
+    /**
+     * Draws the bar in flat render mode, and holds the track color and corner radius.
+     */
+    private final MulticolorProgressRenderer mFlatRenderer = new MulticolorProgressRenderer();
+    /**
+     * Flat mode geometry: right pixel edge of each segment, relative to the content area.
+     */
+    private final int[] mSegmentEdges = new int[ProgressState.MAX_SEGMENTS];
+    private int mSegmentEdgeCount;
+    /**
+     * Pixels to repaint after applying a refresh: a horizontal band of the content area, or the
+     * whole view.
+     */
+    private int mDirtyLeft;
+    private int mDirtyRight;
+    private boolean mDirtyAll;
+    /**
+     * Values currently on screen, UI thread only. They trail the published state while an
+     * animation runs, and are what the draw pass levels, sorts and measures.
+     */
+    private final long[] mShownValues = new long[ProgressState.MAX_SEGMENTS];
+    private int mShownCount = ProgressState.MIN_SEGMENTS;
+    private long mShownMax = ProgressState.DEFAULT.max;
+    private final long[] mAnimationFrom = new long[ProgressState.MAX_SEGMENTS];
+    /**
+     * Snapshot the running animation heads to, null when idle.
+     */
+    private ProgressState mAnimationTarget;
+    private long mAnimationStartTime;
+    private long mAnimationDuration;
+    private Interpolator mInterpolator;
+    /**
+     * Opt-in cache of the background layer, rendered once per size and drawable state.
+     */
+    private boolean mBackgroundCacheEnabled;
+    private Bitmap mBackgroundCache;
+    private Canvas mBackgroundCacheCanvas;
+    /**
+     * The background layer the cache was rendered from, null if the cache is stale.
+     */
+    private Drawable mCachedBackground;
+    /**
+     * Piece states shown in piece map mode, null until a piece count is set.
+     */
+    private volatile PieceMap mPieceMap;
+    private final RefreshProgressRunnable mRefreshProgressRunnable = new RefreshProgressRunnable();
+    /**
+     * Minimum time between two refresh passes, 0 for no cap; see {@link #setMaxRefreshRate(float)}.
+     */
+    private long mMinRefreshIntervalNanos;
+    private float mMaxRefreshRate;
+    /**
+     * Frame time of the last refresh pass, 0 before the first one. UI thread only.
+     */
+    private long mLastRefreshNanos;
+    /**
+     * Set when the held back refresh pass is posted again: it runs on the next frame even if
+     * that frame is stamped a little before the end of the interval.
+     */
+    private boolean mDeferredRefreshDue;
+    /**
+     * Posts the refresh pass that was held back by the refresh rate cap.
+     */
+    private final Runnable mDeferredRefresh = new Runnable() {
+        @Override
+        public void run() {
+            if (mAttached) {
+                mDeferredRefreshDue = true;
+                mFrameScheduler.postFrameCallback(mRefreshProgressRunnable);
+            }
+        }
+    };
+    private volatile FrameScheduler mFrameScheduler;
     private long mUiThreadId;
-    private boolean mAttached;
-    private boolean mRefreshIsPosted;
+    private volatile boolean mAttached;
 
     /**
      * Create a new progress bar with range 0...100 and initial progress of 0.
@@ -108,7 +310,7 @@ public class MulticolorProgressBar extends View {
      * @param context the application environment
      */
     public MulticolorProgressBar(Context context) {
-        this(context, null);
+        this(context, (AttributeSet) null);
     }
 
     public MulticolorProgressBar(Context context, AttributeSet attrs) {
@@ -125,6 +327,7 @@ public class MulticolorProgressBar extends View {
     public MulticolorProgressBar(Context context, AttributeSet attrs, int defStyle, int styleRes) {
         super(context, attrs, defStyle);
         mUiThreadId = Thread.currentThread().getId();
+        mFrameScheduler = FrameScheduler.getDefault();
         initProgressBar();
 
         TypedArray a =
@@ -132,17 +335,19 @@ public class MulticolorProgressBar extends View {
 
         mNoInvalidate = true;
         //straight (normal) order
-        mStraightDrawable = a.getDrawable(R.styleable.MulticolorProgressBar_mcp_straightProgressDrawable);
+        mStraightDrawable = loadProgressDrawable(a, R.styleable.MulticolorProgressBar_mcp_straightProgressDrawable);
         if (mStraightDrawable != null) {
-            mStraightDrawable = tileify(mStraightDrawable, false);
             // Calling this method can set mMaxHeight, make sure the corresponding
             // XML attribute for mMaxHeight is read after calling this method
             setProgressDrawable(mStraightDrawable);
         }
-        //save for later use
-        mReversedDrawable = a.getDrawable(R.styleable.MulticolorProgressBar_mcp_reversedProgressDrawable);
-        if (mReversedDrawable != null) {
-            mReversedDrawable = tileify(mReversedDrawable, false);
+        //reversed order, built on the first flip unless it is not a plain resource
+        mReversedDrawableResId = a.getResourceId(R.styleable.MulticolorProgressBar_mcp_reversedProgressDrawable, 0);
+        if (mReversedDrawableResId == 0) {
+            final Drawable reversed = loadProgressDrawable(a, R.styleable.MulticolorProgressBar_mcp_reversedProgressDrawable);
+            if (reversed != null) {
+                bindReversedDrawable(reversed);
+            }
         }
 
         mMinWidth = a.getDimensionPixelSize(R.styleable.MulticolorProgressBar_mcp_minWidth, mMinWidth);
@@ -154,14 +359,72 @@ public class MulticolorProgressBar extends View {
         mProgressColor = a.getColor(R.styleable.MulticolorProgressBar_mcp_progressColor, mProgressColor);
         mSecondaryProgressColor = a.getColor(R.styleable.MulticolorProgressBar_mcp_secondaryProgressColor, mSecondaryProgressColor);
         setDrawableColors(mProgressColor, mSecondaryProgressColor);
+        mFlatRenderer.setTrackColor(a.getColor(R.styleable.MulticolorProgressBar_mcp_trackColor,
+                mFlatRenderer.getTrackColor()));
+        setCornerRadius(a.getDimension(R.styleable.MulticolorProgressBar_mcp_cornerRadius,
+                mFlatRenderer.getCornerRadius()));
+        mRenderMode = a.getInt(R.styleable.MulticolorProgressBar_mcp_renderMode, mRenderMode);
+        mBackgroundCacheEnabled = a.getBoolean(R.styleable.MulticolorProgressBar_mcp_cacheBackground,
+                mBackgroundCacheEnabled);
+        setProgressAnimationDuration(a.getInt(R.styleable.MulticolorProgressBar_mcp_progressAnimationDuration,
+                (int) mAnimationDuration));
+        setMaxRefreshRate(a.getFloat(R.styleable.MulticolorProgressBar_mcp_maxRefreshRate, mMaxRefreshRate));
         //set max and progress
-        setMax(a.getInt(R.styleable.MulticolorProgressBar_mcp_max, mMax));
-        setProgress(a.getInt(R.styleable.MulticolorProgressBar_mcp_progress, mProgress));
-        setSecondaryProgress(a.getInt(R.styleable.MulticolorProgressBar_mcp_secondaryProgress, mSecondaryProgress));
+        final ProgressState state = mState.get();
+        setMax(a.getInt(R.styleable.MulticolorProgressBar_mcp_max, toInt(state.max)));
+        setProgress(a.getInt(R.styleable.MulticolorProgressBar_mcp_progress, toInt(state.progress)));
+        setSecondaryProgress(a.getInt(R.styleable.MulticolorProgressBar_mcp_secondaryProgress,
+                toInt(state.secondaryProgress)));
         mNoInvalidate = false;
         a.recycle();
     }
 
+    /**
+     * Create a progress bar configured from a spec, without resolving any styled attribute.
+     * Reached through {@link MulticolorProgressBarSpec#newBar(Context)}.
+     *
+     * @param context the application environment
+     * @param spec    the configuration of the bar
+     */
+    MulticolorProgressBar(Context context, MulticolorProgressBarSpec spec) {
+        super(context);
+        mUiThreadId = Thread.currentThread().getId();
+        mFrameScheduler = FrameScheduler.getDefault();
+        initProgressBar();
+
+        mNoInvalidate = true;
+        final int defaultHeight = getResources().getDimensionPixelSize(R.dimen.mcp_default_height);
+        mMinHeight = defaultHeight;
+        mMaxHeight = defaultHeight;
+        mRenderMode = spec.renderMode;
+        // both drawables are loaded when first needed: never, unless in drawable mode
+        mStraightDrawableResId = spec.straightDrawableResId;
+        mReversedDrawableResId = spec.reversedDrawableResId;
+        if (mRenderMode == RENDER_MODE_DRAWABLE) {
+            obtainStraightDrawable();
+        }
+        if (spec.minWidth != MulticolorProgressBarSpec.SIZE_DEFAULT) {
+            mMinWidth = spec.minWidth;
+        }
+        if (spec.maxWidth != MulticolorProgressBarSpec.SIZE_DEFAULT) {
+            mMaxWidth = spec.maxWidth;
+        }
+        if (spec.minHeight != MulticolorProgressBarSpec.SIZE_DEFAULT) {
+            mMinHeight = spec.minHeight;
+        }
+        if (spec.maxHeight != MulticolorProgressBarSpec.SIZE_DEFAULT) {
+            mMaxHeight = spec.maxHeight;
+        }
+        setDrawableColors(spec.progressColor, spec.secondaryProgressColor);
+        mFlatRenderer.setTrackColor(spec.trackColor);
+        setCornerRadius(spec.cornerRadius);
+        mBackgroundCacheEnabled = spec.backgroundCacheEnabled;
+        setProgressAnimationDuration(spec.animationDuration);
+        setMaxRefreshRate(spec.maxRefreshRate);
+        setProgressValues(spec.max, spec.progress, spec.secondaryProgress);
+        mNoInvalidate = false;
+    }
+
     /**
      * Set color for the two drawables
      *
@@ -169,23 +432,148 @@ public class MulticolorProgressBar extends View {
      * @param secondColor
      */
     private void setDrawableColors(int firstColor, int secondColor) {
-        doUpdateProgressColor(android.R.id.progress, firstColor);
-        doUpdateProgressColor(android.R.id.secondaryProgress, secondColor);
+        mProgressColor = firstColor;
+        mSecondaryProgressColor = secondColor;
+        updateProgressDrawableColors();
+        updateSegmentColor(0, firstColor);
+        updateSegmentColor(1, secondColor);
     }
 
     /**
-     * Update the progress colors
-     *
-     * @param id
-     * @param color
+     * Stores a segment color and its color filter, used when drawing more than two segments.
+     */
+    private void updateSegmentColor(int index, int color) {
+        mSegmentColors[index] = color;
+        mSegmentFilters[index] = ColorFilterCache.get(color);
+    }
+
+    /**
+     * Marks the progress colors of both the straight and the reversed drawable as stale, and
+     * applies them right away to the one on screen.
+     */
+    private void updateProgressDrawableColors() {
+        mStraightColorsStale = true;
+        mReversedColorsStale = true;
+        applyStaleColors(mCurrentDrawable);
+    }
+
+    /**
+     * Applies the progress colors to the straight or reversed drawable if they changed since
+     * it was last tinted.
+     */
+    private void applyStaleColors(Drawable d) {
+        if (d == null) {
+            return;
+        }
+        if (d == mStraightDrawable && mStraightColorsStale) {
+            mStraightColorsStale = false;
+        } else if (d == mReversedDrawable && mReversedColorsStale) {
+            mReversedColorsStale = false;
+        } else {
+            return;
+        }
+        // one repaint for both layers, instead of one per filter change
+        final boolean suppressed = mSuppressDrawableInvalidation;
+        mSuppressDrawableInvalidation = true;
+        tintLayer(d, android.R.id.progress, mProgressColor);
+        tintLayer(d, android.R.id.secondaryProgress, mSecondaryProgressColor);
+        mSuppressDrawableInvalidation = suppressed;
+        if (!suppressed && d == mCurrentDrawable) {
+            invalidate();
+        }
+    }
+
+    private static void tintLayer(Drawable d, int id, int color) {
+        final Drawable layer = d instanceof LayerDrawable ? ((LayerDrawable) d).findDrawableByLayerId(id) : null;
+        if (layer != null) {
+            // shared filter instance: no allocation for colors already seen
+            layer.setColorFilter(ColorFilterCache.get(color));
+        }
+    }
+
+    /**
+     * Loads the straight drawable of a bar built from a spec without drawables, and makes it
+     * the drawn one: bound, sized, in the current state, leveled and tinted.
+     */
+    private void obtainStraightDrawable() {
+        if (mStraightDrawable != null || mStraightDrawableResId == 0) {
+            return;
+        }
+        final int resId = mStraightDrawableResId;
+        mStraightDrawableResId = 0;
+        mStraightDrawable = loadProgressDrawable(resId);
+        setProgressDrawable(mStraightDrawable);
+        updateDrawableBounds(getWidth(), getHeight());
+        updateDrawableState();
+        applyStaleColors(mStraightDrawable);
+        applyLayerLevel(mStraightDrawable, android.R.id.progress, toLevel(mShownValues[0], mShownMax));
+        applyLayerLevel(mStraightDrawable, android.R.id.secondaryProgress, toLevel(mShownValues[1], mShownMax));
+    }
+
+    /**
+     * Returns the reversed drawable, building it from its resource the first time.
+     */
+    private Drawable obtainReversedDrawable() {
+        if (mReversedDrawable == null && mReversedDrawableResId != 0) {
+            final int resId = mReversedDrawableResId;
+            mReversedDrawableResId = 0;
+            bindReversedDrawable(loadProgressDrawable(resId));
+        }
+        return mReversedDrawable;
+    }
+
+    /**
+     * Makes <tt>d</tt> the reversed drawable and brings it in line with the straight one:
+     * bound, sized, in the current state and leveled, so that from now on an order flip is
+     * only a matter of which of the two gets drawn. Colors are applied when it is swapped in.
+     */
+    private void bindReversedDrawable(Drawable d) {
+        mReversedDrawable = d;
+        mReversedColorsStale = true;
+        d.setCallback(this);
+        if (mMaxHeight < d.getMinimumHeight()) {
+            mMaxHeight = d.getMinimumHeight();
+            requestLayout();
+        }
+        d.setBounds(0, 0, Math.max(0, getWidth() - getPaddingLeft() - getPaddingRight()),
+                Math.max(0, getHeight() - getPaddingTop() - getPaddingBottom()));
+        if (d.isStateful()) {
+            d.setState(getDrawableState());
+        }
+        applyLayerLevel(d, android.R.id.progress, toLevel(mShownValues[0], mShownMax));
+        applyLayerLevel(d, android.R.id.secondaryProgress, toLevel(mShownValues[1], mShownMax));
+    }
+
+    /**
+     * Returns a private copy of the progress drawable at <tt>index</tt>. Drawables coming from
+     * a resource are resolved and tileified once per process, see {@link ProgressDrawableCache}.
+     */
+    private Drawable loadProgressDrawable(TypedArray a, int index) {
+        final int resId = a.getResourceId(index, 0);
+        if (resId != 0) {
+            final Drawable cached = ProgressDrawableCache.newDrawable(getResources(), resId);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final Drawable d = a.getDrawable(index);
+        if (d == null) {
+            return null;
+        }
+        final Drawable tiled = tileify(d, false);
+        return resId != 0 ? ProgressDrawableCache.putAndCopy(getResources(), resId, tiled) : tiled;
+    }
+
+    /**
+     * Same as {@link #loadProgressDrawable(TypedArray, int)} for a drawable resource.
      */
-    private void doUpdateProgressColor(int id, int color) {
-        LayerDrawable layerDrawable = (LayerDrawable) mStraightDrawable;
-        LayerDrawable reverseLayerDrawable = (LayerDrawable) mReversedDrawable;
-        Drawable mOverlayProgressDrawable = layerDrawable.findDrawableByLayerId(id);
-        mOverlayProgressDrawable.setColorFilter(color, PorterDuff.Mode.SRC_ATOP);
-        mOverlayProgressDrawable = reverseLayerDrawable.findDrawableByLayerId(id);
-        mOverlayProgressDrawable.setColorFilter(color, PorterDuff.Mode.SRC_ATOP);
+    private Drawable loadProgressDrawable(int resId) {
+        final Drawable cached = ProgressDrawableCache.newDrawable(getResources(), resId);
+        if (cached != null) {
+            return cached;
+        }
+        final Drawable tiled = tileify(getResources().getDrawable(resId), false);
+        return ProgressDrawableCache.putAndCopy(getResources(), resId, tiled);
     }
 
     /**
@@ -227,11 +615,17 @@ public class MulticolorProgressBar extends View {
      * </ul>
      */
     private void initProgressBar() {
-        mMax = 100;
-        mProgress = 0;
+        mState.set(ProgressState.DEFAULT);
         mProgressColor = Color.GREEN;
-        mSecondaryProgress = 0;
         mSecondaryProgressColor = Color.BLUE;
+        // sized for the most segments a bar can have, so colors can be set ahead of the values
+        mSegmentColors = new int[ProgressState.MAX_SEGMENTS];
+        mSegmentColors[0] = mProgressColor;
+        mSegmentColors[1] = mSecondaryProgressColor;
+        mSegmentFilters = new PorterDuffColorFilter[ProgressState.MAX_SEGMENTS];
+        mRenderMode = RENDER_MODE_DRAWABLE;
+        mAnimationDuration = 0;
+        mInterpolator = new DecelerateInterpolator();
         mMinWidth = 24;
         mMaxWidth = 48;
         mMinHeight = 24;
@@ -239,113 +633,1216 @@ public class MulticolorProgressBar extends View {
     }
 
     /**
-     * <p>Get the drawable used to draw the progress bar in
-     * progress mode.</p>
+     * <p>Get the drawable used to draw the progress bar in
+     * progress mode.</p>
+     *
+     * @return a {@link android.graphics.drawable.Drawable} instance
+     *
+     * @see #setProgressDrawable(android.graphics.drawable.Drawable)
+     */
+    public Drawable getProgressDrawable() {
+        return mProgressDrawable;
+    }
+
+    /**
+     * <p>Define the drawable used to draw the progress bar in
+     * progress mode.</p>
+     *
+     * @param d the new drawable
+     *
+     * @see #getProgressDrawable()
+     */
+    public void setProgressDrawable(Drawable d) {
+        final boolean trace = ProgressTrace.sEnabled;
+        if (trace) {
+            ProgressTrace.begin("MCPB setProgressDrawable");
+        }
+        doSetProgressDrawable(d);
+        if (trace) {
+            ProgressTrace.end();
+        }
+    }
+
+    private void doSetProgressDrawable(Drawable d) {
+        boolean needUpdate;
+        if (mProgressDrawable != null && d != mProgressDrawable) {
+            mProgressDrawable.setCallback(null);
+            needUpdate = true;
+        } else {
+            needUpdate = false;
+        }
+
+        if (d != null) {
+            d.setCallback(this);
+
+            // Make sure the ProgressBar is always tall enough
+            int drawableHeight = d.getMinimumHeight();
+            if (mMaxHeight < drawableHeight) {
+                mMaxHeight = drawableHeight;
+                requestLayout();
+            }
+        }
+        mProgressDrawable = d;
+        mCurrentDrawable = d;
+        postInvalidate();
+
+        if (needUpdate) {
+            updateDrawableBounds(getWidth(), getHeight());
+            updateDrawableState();
+            // postInvalidate() above repaints everything, the dirty band is not needed
+            applyLevel(android.R.id.progress, mShownValues[0], mShownMax);
+            applyLevel(android.R.id.secondaryProgress, mShownValues[1], mShownMax);
+        }
+    }
+
+    /**
+     * Picks which of the straight and reversed drawables is drawn for the shown values.
+     * Both are always bound, sized, in the current state and leveled, so a flip does not go
+     * through {@link #setProgressDrawable(Drawable)}: it is a draw-order decision, as cheap as
+     * a level update, and can happen on any frame of an animation. A drawable installed with
+     * {@link #setProgressDrawable(Drawable)} is left alone until the order flips. Must be
+     * called on the UI thread.
+     */
+    private void syncColorOrder() {
+        // with more than two segments the z-order is sorted at draw time on the straight drawable
+        final boolean normalOrder = mShownCount > ProgressState.MIN_SEGMENTS || mShownValues[0] <= mShownValues[1];
+        final Drawable current = mCurrentDrawable;
+        if (normalOrder == mSyncedNormalOrder && current != mStraightDrawable && current != mReversedDrawable) {
+            // a drawable set through setProgressDrawable() stays until the order actually flips
+            return;
+        }
+        // built ahead by applySegments(), never here: this also runs in the draw pass
+        final Drawable wanted = normalOrder ? mStraightDrawable : mReversedDrawable;
+        if (wanted == null) {
+            return;
+        }
+        mSyncedNormalOrder = normalOrder;
+        if (wanted != current) {
+            final boolean trace = ProgressTrace.sEnabled;
+            if (trace) {
+                ProgressTrace.begin("MCPB swapDrawable");
+            }
+            applyStaleColors(wanted);
+            if (wanted.getCallback() != this) {
+                // unbound by a call to setProgressDrawable() in the meantime
+                wanted.setCallback(this);
+            }
+            mProgressDrawable = wanted;
+            mCurrentDrawable = wanted;
+            final ProgressBarMetrics metrics = mMetrics;
+            if (metrics != null) {
+                metrics.onDrawableSwap();
+            }
+            invalidate();
+            if (trace) {
+                ProgressTrace.end();
+            }
+        }
+    }
+
+    private void doRefreshProgress(ProgressState state, int id, boolean fromUser,
+                                   boolean callBackToApp) {
+        final boolean trace = ProgressTrace.sEnabled;
+        if (trace) {
+            ProgressTrace.begin("MCPB doRefreshProgress");
+        }
+        applyLevel(id, state.valueFor(id), state.max);
+        if (trace) {
+            ProgressTrace.end();
+        }
+    }
+
+    private static int toLevel(long progress, long max) {
+        return ProgressState.scale(progress, max, MAX_LEVEL);
+    }
+
+    /**
+     * Narrows a value for the int getters, saturating at {@link Integer#MAX_VALUE}.
+     */
+    private static int toInt(long value) {
+        return value > Integer.MAX_VALUE ? Integer.MAX_VALUE : (int) value;
+    }
+
+    /**
+     * Sets the level of a layer on the drawn drawable and on the straight/reversed pair, and
+     * marks dirty only the band between the old and the new edge of the drawn layer. Layers
+     * that are not a {@link ScaleDrawable} fall back to a full invalidation.
+     */
+    private void applyLevel(int id, long progress, long max) {
+        final Drawable d = mCurrentDrawable;
+        if (d != null) {
+            final int level = toLevel(progress, max);
+            final Drawable layer = d instanceof LayerDrawable ? ((LayerDrawable) d).findDrawableByLayerId(id) : null;
+            final int oldEdge = drawnRightEdge(layer);
+
+            mSuppressDrawableInvalidation = true;
+            if (d != mStraightDrawable && d != mReversedDrawable) {
+                applyLayerLevel(d, id, level);
+            }
+            applyLayerLevel(mStraightDrawable, id, level);
+            applyLayerLevel(mReversedDrawable, id, level);
+            mSuppressDrawableInvalidation = false;
+
+            final int newEdge = drawnRightEdge(layer);
+            if (oldEdge < 0 || newEdge < 0) {
+                mDirtyAll = true;
+            } else if (oldEdge != newEdge) {
+                addDirty(oldEdge, newEdge);
+            }
+        } else {
+            mDirtyAll = true;
+        }
+    }
+
+    /**
+     * Returns the right edge of what a progress layer currently draws, in drawable
+     * coordinates, or -1 if it cannot be told.
+     */
+    private static int drawnRightEdge(Drawable layer) {
+        if (!(layer instanceof ScaleDrawable)) {
+            return -1;
+        }
+        final Drawable scaled = ((ScaleDrawable) layer).getDrawable();
+        // a ScaleDrawable draws nothing at level 0
+        return scaled.getLevel() == 0 ? 0 : scaled.getBounds().right;
+    }
+
+    private static void applyLayerLevel(Drawable d, int id, int level) {
+        if (d != null) {
+            Drawable progressDrawable = null;
+            if (d instanceof LayerDrawable) {
+                progressDrawable = ((LayerDrawable) d).findDrawableByLayerId(id);
+            }
+            (progressDrawable != null ? progressDrawable : d).setLevel(level);
+        }
+    }
+
+    /**
+     * Applies segments right away while detached on the UI thread, otherwise marks them
+     * pending so that the frame scheduler applies them, together with the other segments, once
+     * on the next frame.
+     *
+     * @param slotMask the segments to refresh, see {@link RefreshSlots#maskOf(int)}
+     */
+    private void refreshProgress(int slotMask, boolean fromUser) {
+        final boolean attached = mAttached;
+        final boolean uiThread = mUiThreadId == Thread.currentThread().getId();
+        final ProgressBarMetrics metrics = mMetrics;
+        if (!attached && uiThread) {
+            applySegments(RefreshSlots.pendingBits(slotMask, fromUser));
+        } else if (mRefreshSlots.offer(slotMask, fromUser, attached)
+                // parked while detached: if the bar got attached in the meantime, its drain may
+                // have run before the slot was set, so claim the post now
+                || (!attached && mAttached && mRefreshSlots.offer(slotMask, fromUser, true))) {
+            if (metrics != null && !uiThread) {
+                metrics.onCrossThreadPost();
+            }
+            mFrameScheduler.postFrameCallback(mRefreshProgressRunnable);
+        } else if (metrics != null) {
+            metrics.onUpdateCoalesced();
+        }
+    }
+
+    /**
+     * Applies the latest published values of the pending segments: one order check, then the
+     * levels or the geometry, then a single invalidation. With an animation duration set, the
+     * values become the target of the animation instead. Must be called on the UI thread.
+     *
+     * @param pending pending bits as returned by {@link RefreshSlots#drain()}
+     */
+    private void applySegments(int pending) {
+        final ProgressState state = mState.get();
+        if (mRenderMode == RENDER_MODE_DRAWABLE && state.getSegmentCount() == ProgressState.MIN_SEGMENTS
+                && (!state.isNormalColorOrder() || mShownValues[0] > mShownValues[1])) {
+            // the reversed drawable is needed now, or on some frame of the animation towards
+            // this state: load it here rather than from the draw pass, where it could request
+            // a layout
+            obtainReversedDrawable();
+        }
+        if (canAnimateTo(state)) {
+            if (state != mAnimationTarget) {
+                // start from what is on screen now, so a retarget mid-animation does not jump
+                System.arraycopy(mShownValues, 0, mAnimationFrom, 0, mShownCount);
+                mAnimationStartTime = AnimationUtils.currentAnimationTimeMillis();
+                mAnimationTarget = state;
+                invalidate();
+            }
+            publishRenderedEdges(state);
+            dispatchProgressChanged(state, pending);
+            return;
+        }
+        mAnimationTarget = null;
+        mShownCount = state.getSegmentCount();
+        mShownMax = state.max;
+        for (int i = 0; i < mShownCount; i++) {
+            mShownValues[i] = state.getValue(i);
+        }
+        resetDirty();
+        if (mRenderMode == RENDER_MODE_FLAT) {
+            if (!updateSegmentEdges(mShownValues, mShownCount, mShownMax)) {
+                mDirtyAll = true;
+            }
+            // only the band swept by the moving edges changes, rounded corners included
+            invalidateDirty((int) Math.ceil(mFlatRenderer.getCornerRadius()));
+        } else if (state.getSegmentCount() > ProgressState.MIN_SEGMENTS) {
+            // levels are set while drawing, in z-order
+            syncColorOrder();
+            invalidate();
+        } else {
+            syncColorOrder();
+            for (int slot = 0; slot < ProgressState.MIN_SEGMENTS; slot++) {
+                if (RefreshSlots.isPending(pending, slot)) {
+                    doRefreshProgress(state, RefreshSlots.idFor(slot), RefreshSlots.isFromUser(pending, slot), true);
+                }
+            }
+            // the 9-patch end cap moves with the edge: widen the band by the bar height
+            invalidateDirty(getHeight());
+        }
+        publishRenderedEdges(state);
+        dispatchProgressChanged(state, pending);
+    }
+
+    /**
+     * Reports the values of a refresh pass to the listener, if they differ from the last
+     * reported ones. Refresh passes run at most once per frame, so do the callbacks.
+     */
+    private void dispatchProgressChanged(ProgressState state, int pending) {
+        final OnProgressChangeListener listener = mOnProgressChangeListener;
+        if (listener == null) {
+            return;
+        }
+        if (state.progress != mReportedProgress || state.secondaryProgress != mReportedSecondaryProgress) {
+            mReportedProgress = state.progress;
+            mReportedSecondaryProgress = state.secondaryProgress;
+            final boolean fromUser = RefreshSlots.isFromUser(pending, RefreshSlots.SLOT_PROGRESS)
+                    || RefreshSlots.isFromUser(pending, RefreshSlots.SLOT_SECONDARY_PROGRESS);
+            listener.onProgressChanged(this, state.progress, state.secondaryProgress, fromUser);
+        }
+        final boolean normalOrder = state.isNormalColorOrder();
+        if (normalOrder != mReportedNormalOrder) {
+            mReportedNormalOrder = normalOrder;
+            listener.onColorOrderChanged(this, normalOrder);
+        }
+    }
+
+    /**
+     * Returns whether a change to <tt>state</tt> can be animated from the shown values: an
+     * animation duration is set, the bar is on screen and laid out, and only values changed.
+     * A new max or segment count is applied at once, so is a state that shows nothing new.
+     */
+    private boolean canAnimateTo(ProgressState state) {
+        if (mAnimationDuration <= 0 || !mAttached || mContentWidth <= 0
+                || state.max != mShownMax || state.getSegmentCount() != mShownCount) {
+            return false;
+        }
+        for (int i = 0; i < mShownCount; i++) {
+            if (state.getValue(i) != mShownValues[i]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the shown values to where the running animation is at the current frame time and
+     * applies them, then asks for the next frame if the animation is not over. Called at the
+     * start of the draw pass; plain primitive math, no allocation and no lock.
+     */
+    private void stepAnimation() {
+        final ProgressState target = mAnimationTarget;
+        if (target == null) {
+            return;
+        }
+        final long elapsed = AnimationUtils.currentAnimationTimeMillis() - mAnimationStartTime;
+        final int count = mShownCount;
+        if (elapsed >= mAnimationDuration) {
+            mAnimationTarget = null;
+            for (int i = 0; i < count; i++) {
+                mShownValues[i] = target.getValue(i);
+            }
+        } else {
+            final float fraction = mInterpolator.getInterpolation(elapsed / (float) mAnimationDuration);
+            for (int i = 0; i < count; i++) {
+                final long from = mAnimationFrom[i];
+                final long value = from + (long) ((target.getValue(i) - from) * (double) fraction);
+                // overshooting interpolators must not leave the range
+                mShownValues[i] = value < 0 ? 0 : Math.min(value, mShownMax);
+            }
+            invalidate();
+        }
+        if (mRenderMode == RENDER_MODE_FLAT) {
+            updateSegmentEdges(mShownValues, count, mShownMax);
+        } else if (count == ProgressState.MIN_SEGMENTS) {
+            // the two layers may cross on this frame
+            syncColorOrder();
+            applyLevel(android.R.id.progress, mShownValues[0], mShownMax);
+            applyLevel(android.R.id.secondaryProgress, mShownValues[1], mShownMax);
+        }
+    }
+
+    /**
+     * Records the pixel edges just applied, then makes sure no update was dropped against the
+     * edges being replaced: a setter publishes its state before reading the edges, this
+     * method stores the edges before reading the state again, so at least one of the two sides
+     * sees the other.
+     */
+    private void publishRenderedEdges(ProgressState state) {
+        final int width = mContentWidth;
+        final boolean flat = mRenderMode == RENDER_MODE_FLAT;
+        for (int i = 0; i < state.getSegmentCount(); i++) {
+            mRenderedEdges.set(i, pixelEdge(state.getValue(i), state.max, width, flat));
+        }
+        mRenderedNormalOrder = state.isNormalColorOrder();
+        if (mAttached && mState.get() != state && mRefreshSlots.offer(ALL_SLOTS, false, true)) {
+            mFrameScheduler.postFrameCallback(mRefreshProgressRunnable);
+        }
+    }
+
+    /**
+     * Returns the right pixel edge a value is drawn at: exact integer scaling in flat mode,
+     * the {@link ScaleDrawable} rounding of the level otherwise.
+     */
+    private static int pixelEdge(long value, long max, int width, boolean flat) {
+        if (max <= 0 || width <= 0) {
+            return 0;
+        }
+        if (flat) {
+            return ProgressState.scale(value, max, width);
+        }
+        final int level = toLevel(value, max);
+        return width - (int) (width * (MAX_LEVEL - level) / (float) MAX_LEVEL);
+    }
+
+    /**
+     * Returns whether the given segments of a freshly published state are drawn at the same
+     * pixels as in the last refresh pass, so that refreshing them can be skipped entirely.
+     */
+    private boolean isVisuallyUnchanged(ProgressState state, int slotMask) {
+        final int width = mContentWidth;
+        if (width <= 0) {
+            // not laid out yet: nothing to compare against
+            return false;
+        }
+        final boolean flat = mRenderMode == RENDER_MODE_FLAT;
+        if (!flat) {
+            // drawables are z-ordered by value, not by pixel: two layers ending on the same pixel
+            // still show a different color after an order flip
+            if (state.getSegmentCount() > ProgressState.MIN_SEGMENTS
+                    || state.isNormalColorOrder() != mRenderedNormalOrder) {
+                return false;
+            }
+        }
+        for (int i = 0; i < state.getSegmentCount(); i++) {
+            if ((slotMask & RefreshSlots.maskOf(i)) != 0
+                    && pixelEdge(state.getValue(i), state.max, width, flat) != mRenderedEdges.get(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * <p>Return how many progress updates were dropped because the new value was drawn at
+     * the same pixel as the previous one: no level change, no invalidation and no cross-thread
+     * post were done for them.</p>
+     *
+     * @return the number of suppressed updates since this bar was created
+     */
+    public long getSuppressedUpdateCount() {
+        return mSuppressedUpdates.get();
+    }
+
+    /**
+     * Emits the number of segments about to be refreshed and the latest published progress
+     * as this bar's trace counters.
+     */
+    private void traceCounters(int pending) {
+        if (mTracePendingCounter == null) {
+            final String name = "MCPB #" + Integer.toHexString(getId() != NO_ID ? getId() : System.identityHashCode(this));
+            mTracePendingCounter = name + " pending";
+            mTraceProgressCounter = name + " progress";
+        }
+        ProgressTrace.counter(mTracePendingCounter, RefreshSlots.pendingCount(pending));
+        ProgressTrace.counter(mTraceProgressCounter, mState.get().progress);
+    }
+
+    /**
+     * <p>Return whether progress bars emit systrace sections and counters.</p>
+     *
+     * @return true if tracing is on
+     *
+     * @see #setTraceEnabled(boolean)
+     */
+    public static boolean isTraceEnabled() {
+        return ProgressTrace.sEnabled;
+    }
+
+    /**
+     * <p>Make every progress bar emit systrace sections around its refresh passes, drawable
+     * swaps and draws, plus two counters per bar: the number of segments waiting for a refresh
+     * and the current progress. Off by default; while off each of these spots costs a single
+     * branch. Has no effect before Jelly Bean MR2. Meant to be called once, early, e.g. from
+     * <tt>Application.onCreate()</tt> of a debug build.</p>
+     *
+     * @param enabled true to emit trace sections
+     */
+    public static void setTraceEnabled(boolean enabled) {
+        ProgressTrace.setEnabled(enabled);
+    }
+
+    /**
+     * <p>Get the listener notified of progress changes.</p>
+     *
+     * @return the listener, or null
+     *
+     * @see #setOnProgressChangeListener(OnProgressChangeListener)
+     */
+    public OnProgressChangeListener getOnProgressChangeListener() {
+        return mOnProgressChangeListener;
+    }
+
+    /**
+     * <p>Set a listener notified when the progress, the secondary progress or the color order
+     * change. Changes are reported with the refresh pass that shows them: on the UI thread, at
+     * most once per frame and with the latest values, however many setter calls happened in
+     * between. While a listener is set, updates that do not move any pixel still schedule a
+     * refresh pass, so that the final values are always reported. Must be called on the UI
+     * thread; only changes made after this call are reported.</p>
+     *
+     * @param listener the listener, null to remove it
+     */
+    public void setOnProgressChangeListener(OnProgressChangeListener listener) {
+        final ProgressState state = mState.get();
+        mReportedProgress = state.progress;
+        mReportedSecondaryProgress = state.secondaryProgress;
+        mReportedNormalOrder = state.isNormalColorOrder();
+        mOnProgressChangeListener = listener;
+    }
+
+    /**
+     * <p>Get the metrics this bar counts its activity into.</p>
+     *
+     * @return the metrics, or null if disabled
+     *
+     * @see #setMetrics(ProgressBarMetrics)
+     */
+    public ProgressBarMetrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * <p>Start counting setter calls, coalesced and dropped updates, cross-thread posts,
+     * drawable swaps, invalidations and draw time into <tt>metrics</tt>. Disabled by default;
+     * while disabled each of these events costs a single null check. Several bars may share
+     * the same metrics. Can be called from any thread.</p>
+     *
+     * @param metrics the metrics to count into, null to stop counting
+     *
+     * @see #getMetrics()
+     */
+    public void setMetrics(ProgressBarMetrics metrics) {
+        mMetrics = metrics;
+    }
+
+    private void countSetterCall() {
+        final ProgressBarMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onSetterCall();
+        }
+    }
+
+    /**
+     * Counts an update that changes nothing on screen, and returns true.
+     */
+    private boolean countDroppedUpdate() {
+        final ProgressBarMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onUpdateDropped();
+        }
+        return true;
+    }
+
+    /**
+     * Applies every pending slot with the latest published value. Must be called on the UI thread.
+     */
+    private void applyPendingRefreshes() {
+        final int pending = mRefreshSlots.drain();
+        if (ProgressTrace.sEnabled) {
+            traceCounters(pending);
+        }
+        if (pending != 0) {
+            applySegments(pending);
+        }
+    }
+
+    void setProgress(long progress, boolean fromUser) {
+        countSetterCall();
+        while (!compareAndSetValue(mState.get(), RefreshSlots.SLOT_PROGRESS, progress, fromUser)) {
+            // lost the race against another writer, retry on the fresh snapshot
+        }
+    }
+
+    /**
+     * Publishes a new segment value if the state is still <tt>expected</tt>.
+     * A color order flip is handled by {@link #doRefreshProgress} on the UI thread.
+     *
+     * @return false if another thread changed the state in the meantime
+     */
+    private boolean compareAndSetValue(ProgressState expected, int index, long value, boolean fromUser) {
+        final ProgressState updated = expected.withValue(index, value);
+        if (updated == expected) {
+            return countDroppedUpdate();
+        }
+        if (!mState.compareAndSet(expected, updated)) {
+            return false;
+        }
+        final int slotMask = RefreshSlots.maskOf(index);
+        if (mOnProgressChangeListener == null && isVisuallyUnchanged(updated, slotMask)) {
+            mSuppressedUpdates.incrementAndGet();
+            countDroppedUpdate();
+        } else {
+            refreshProgress(slotMask, fromUser);
+        }
+        return true;
+    }
+
+    /**
+     * Recomputes the cached flat mode geometry from the given values and the current size, and
+     * adds the horizontal band swept by the edges that moved to the dirty band.
+     *
+     * @return false if the number of segments changed, so the band is meaningless
+     */
+    private boolean updateSegmentEdges(long[] values, int count, long max) {
+        final int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        for (int i = 0; i < count; i++) {
+            final int edge = ProgressState.scale(values[i], max, width);
+            final int previous = mSegmentEdges[i];
+            if (edge != previous) {
+                addDirty(previous, edge);
+                mSegmentEdges[i] = edge;
+            }
+        }
+        final boolean sameCount = count == mSegmentEdgeCount;
+        mSegmentEdgeCount = count;
+        return sameCount;
+    }
+
+    private void resetDirty() {
+        mDirtyLeft = Integer.MAX_VALUE;
+        mDirtyRight = Integer.MIN_VALUE;
+        mDirtyAll = false;
+    }
+
+    /**
+     * Extends the dirty band to the pixels between two edges, in content coordinates.
+     */
+    private void addDirty(int edge, int otherEdge) {
+        mDirtyLeft = Math.min(mDirtyLeft, Math.min(edge, otherEdge));
+        mDirtyRight = Math.max(mDirtyRight, Math.max(edge, otherEdge));
+    }
+
+    /**
+     * Invalidates the whole view if needed, otherwise the full-height rectangle of the dirty
+     * band widened by <tt>slop</tt> pixels on both sides. Does nothing for an empty band.
+     */
+    private void invalidateDirty(int slop) {
+        if (mDirtyAll) {
+            invalidate();
+        } else if (mDirtyLeft <= mDirtyRight) {
+            final int paddingLeft = getPaddingLeft();
+            invalidate(paddingLeft + mDirtyLeft - slop, 0, paddingLeft + mDirtyRight + slop + 1, getHeight());
+        }
+    }
+
+    /**
+     * <p>Get how the bar is drawn.</p>
+     *
+     * @return {@link #RENDER_MODE_DRAWABLE}, {@link #RENDER_MODE_FLAT} or
+     * {@link #RENDER_MODE_PIECE_MAP}
+     *
+     * @see #setRenderMode(int)
+     */
+    public int getRenderMode() {
+        return mRenderMode;
+    }
+
+    /**
+     * <p>Set how the bar is drawn. In {@link #RENDER_MODE_FLAT flat} mode the progress
+     * drawables are ignored: the track and the segments are painted as rectangles, rounded by
+     * {@link #setCornerRadius(float)}, with the track color and the progress colors. In
+     * {@link #RENDER_MODE_PIECE_MAP piece map} mode the piece states are drawn instead of
+     * the values.</p>
+     *
+     * @param renderMode {@link #RENDER_MODE_DRAWABLE}, {@link #RENDER_MODE_FLAT} or
+     *                   {@link #RENDER_MODE_PIECE_MAP}
+     *
+     * @see #getRenderMode()
+     */
+    public void setRenderMode(int renderMode) {
+        if (renderMode != RENDER_MODE_DRAWABLE && renderMode != RENDER_MODE_FLAT
+                && renderMode != RENDER_MODE_PIECE_MAP) {
+            throw new IllegalArgumentException("Unknown render mode " + renderMode);
+        }
+        if (renderMode != mRenderMode) {
+            mRenderMode = renderMode;
+            if (renderMode == RENDER_MODE_DRAWABLE) {
+                // bars built from a spec in another mode have not loaded it yet
+                obtainStraightDrawable();
+            }
+            applySegments(RefreshSlots.pendingBits(ALL_SLOTS, false));
+            invalidate();
+        }
+    }
+
+    /**
+     * <p>Get the color of the empty part of the bar in flat render mode.</p>
+     *
+     * @return the track color
+     */
+    public int getTrackColor() {
+        return mFlatRenderer.getTrackColor();
+    }
+
+    /**
+     * <p>Set the color of the empty part of the bar in flat render mode.</p>
+     *
+     * @param trackColor the new color; must be a valid color.
+     */
+    public void setTrackColor(int trackColor) {
+        if (trackColor != mFlatRenderer.getTrackColor()) {
+            mFlatRenderer.setTrackColor(trackColor);
+            invalidate();
+        }
+    }
+
+    /**
+     * <p>Get the corner radius of the bar in flat render mode.</p>
+     *
+     * @return the radius, in pixels
+     */
+    public float getCornerRadius() {
+        return mFlatRenderer.getCornerRadius();
+    }
+
+    /**
+     * <p>Set the corner radius of the bar in flat render mode; 0 draws plain rectangles.</p>
+     *
+     * @param cornerRadius the radius, in pixels
+     */
+    public void setCornerRadius(float cornerRadius) {
+        mFlatRenderer.setCornerRadius(cornerRadius);
+        invalidate();
+    }
+
+    /**
+     * <p>Return whether the background layer is drawn from a cached bitmap.</p>
+     *
+     * @return true if the background cache is enabled
+     *
+     * @see #setBackgroundCacheEnabled(boolean)
+     */
+    public boolean isBackgroundCacheEnabled() {
+        return mBackgroundCacheEnabled;
+    }
+
+    /**
+     * <p>Cache the background layer of the progress drawable ({@code @android:id/background})
+     * in a bitmap. The 9-patch is then stretched and drawn once per size and drawable state,
+     * every frame only composites the bitmap and the moving progress layers. Costs a bitmap as
+     * large as the bar; off by default.</p>
+     *
+     * @param enabled true to cache the background layer
+     */
+    public void setBackgroundCacheEnabled(boolean enabled) {
+        if (enabled != mBackgroundCacheEnabled) {
+            mBackgroundCacheEnabled = enabled;
+            if (!enabled) {
+                releaseBackgroundCache();
+            }
+            invalidate();
+        }
+    }
+
+    private void releaseBackgroundCache() {
+        mBackgroundCache = null;
+        mBackgroundCacheCanvas = null;
+        mCachedBackground = null;
+    }
+
+    /**
+     * Draws a background layer, from the cache if enabled. The cache is rendered again after a
+     * resize, a drawable state change, or when another background layer shows up (e.g. after
+     * {@link #setProgressDrawable(Drawable)}). The straight and the reversed drawables share
+     * one rendering, see {@link #backgroundCacheSource(Drawable)}.
+     */
+    private void drawBackgroundLayer(Canvas canvas, Drawable background) {
+        if (!mBackgroundCacheEnabled) {
+            background.draw(canvas);
+            return;
+        }
+        final int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        final int height = getHeight() - getPaddingTop() - getPaddingBottom();
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        Bitmap cache = mBackgroundCache;
+        if (cache == null || cache.getWidth() != width || cache.getHeight() != height) {
+            cache = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            mBackgroundCache = cache;
+            mBackgroundCacheCanvas = new Canvas(cache);
+            mCachedBackground = null;
+        }
+        final Drawable source = backgroundCacheSource(background);
+        if (mCachedBackground != source) {
+            cache.eraseColor(Color.TRANSPARENT);
+            source.draw(mBackgroundCacheCanvas);
+            mCachedBackground = source;
+        }
+        canvas.drawBitmap(cache, 0, 0, null);
+    }
+
+    /**
+     * Returns the drawable the cache renders a background layer from. The background of the
+     * reversed drawable is a copy of the straight one's, both kept at the same bounds and
+     * state: it is rendered from the straight drawable, so that order flips reuse the cache
+     * instead of rasterizing the 9-patch again on every crossing.
+     */
+    private Drawable backgroundCacheSource(Drawable background) {
+        if (!(mStraightDrawable instanceof LayerDrawable) || !(mReversedDrawable instanceof LayerDrawable)
+                || background != ((LayerDrawable) mReversedDrawable).findDrawableByLayerId(android.R.id.background)) {
+            return background;
+        }
+        final Drawable straight = ((LayerDrawable) mStraightDrawable).findDrawableByLayerId(android.R.id.background);
+        if (straight == null || straight.getClass() != background.getClass()
+                || straight.getIntrinsicWidth() != background.getIntrinsicWidth()
+                || straight.getIntrinsicHeight() != background.getIntrinsicHeight()) {
+            // a custom reversed drawable with a background of its own
+            return background;
+        }
+        return straight;
+    }
+
+    /**
+     * Draws every layer of the progress drawable, the background one from the cache.
+     */
+    private void drawLayers(Canvas canvas, LayerDrawable layers) {
+        final int count = layers.getNumberOfLayers();
+        for (int i = 0; i < count; i++) {
+            if (layers.getId(i) == android.R.id.background) {
+                drawBackgroundLayer(canvas, layers.getDrawable(i));
+            } else {
+                layers.getDrawable(i).draw(canvas);
+            }
+        }
+    }
+
+    /**
+     * <p>Get how long a change of the progress values takes to be animated.</p>
+     *
+     * @return the duration in milliseconds, 0 if changes are applied at once
+     *
+     * @see #setProgressAnimationDuration(long)
+     */
+    public long getProgressAnimationDuration() {
+        return mAnimationDuration;
+    }
+
+    /**
+     * <p>Animate changes of the progress values over the given duration. Setters keep
+     * publishing target values from any thread; the shown values are interpolated towards
+     * them in the draw pass, from the frame time, without allocating and without locking.
+     * A new target set mid-animation starts from the values on screen. Changes of max or of
+     * the number of segments are not animated.</p>
+     *
+     * @param durationMillis the duration in milliseconds; 0 (default) applies changes at once
+     *
+     * @see #setProgressInterpolator(Interpolator)
+     */
+    public void setProgressAnimationDuration(long durationMillis) {
+        if (durationMillis < 0) {
+            throw new IllegalArgumentException("Negative animation duration " + durationMillis);
+        }
+        mAnimationDuration = durationMillis;
+        if (durationMillis == 0 && mAnimationTarget != null) {
+            // jump to the end of the running animation
+            applySegments(RefreshSlots.pendingBits(ALL_SLOTS, false));
+            invalidate();
+        }
+    }
+
+    /**
+     * <p>Get the cap on visual refreshes.</p>
+     *
+     * @return the maximum number of refreshes per second, 0 if not capped
+     *
+     * @see #setMaxRefreshRate(float)
+     */
+    public float getMaxRefreshRate() {
+        return mMaxRefreshRate;
+    }
+
+    /**
+     * <p>Cap how often the bar applies new values to the screen, e.g. to a few refreshes per
+     * second for a decorative indicator. Setters keep publishing values at full speed from any
+     * thread, but the refresh passes that draw them are spaced by at least
+     * <tt>1 / refreshesPerSecond</tt>: values set in between are kept and only the latest one
+     * is drawn. A refresh held back by the cap is posted for the end of the interval, so the
+     * final value always shows up. Running progress animations are not capped. Must be called
+     * on the UI thread.</p>
+     *
+     * @param refreshesPerSecond the maximum number of refreshes per second; 0 (default)
+     *                           refreshes on every frame
+     *
+     * @see #getMaxRefreshRate()
+     */
+    public void setMaxRefreshRate(float refreshesPerSecond) {
+        if (!(refreshesPerSecond >= 0)) {
+            throw new IllegalArgumentException("Invalid refresh rate " + refreshesPerSecond);
+        }
+        mMaxRefreshRate = refreshesPerSecond;
+        mMinRefreshIntervalNanos = refreshesPerSecond > 0 ? (long) (1e9 / refreshesPerSecond) : 0;
+    }
+
+    /**
+     * Returns whether the refresh pass of the frame at <tt>frameTimeNanos</tt> must be held
+     * back by the refresh rate cap. If so, the pending slots are left as they are, still marked
+     * as posted so that producers do not post again, and the pass is posted again for the end
+     * of the interval.
+     */
+    private boolean deferRefresh(long frameTimeNanos) {
+        final long interval = mMinRefreshIntervalNanos;
+        if (interval > 0 && mLastRefreshNanos != 0 && !mDeferredRefreshDue) {
+            final long remaining = interval - (frameTimeNanos - mLastRefreshNanos);
+            if (remaining > 0) {
+                removeCallbacks(mDeferredRefresh);
+                postDelayed(mDeferredRefresh, (remaining + 999999) / 1000000);
+                return true;
+            }
+        }
+        mDeferredRefreshDue = false;
+        mLastRefreshNanos = frameTimeNanos;
+        return false;
+    }
+
+    /**
+     * <p>Get the interpolator of the progress animation.</p>
+     *
+     * @return the interpolator, a {@link DecelerateInterpolator} by default
+     */
+    public Interpolator getProgressInterpolator() {
+        return mInterpolator;
+    }
+
+    /**
+     * <p>Set the interpolator of the progress animation. It is called on every frame of an
+     * animation and should not allocate.</p>
+     *
+     * @param interpolator the new interpolator, must not be null
+     *
+     * @see #setProgressAnimationDuration(long)
+     */
+    public void setProgressInterpolator(Interpolator interpolator) {
+        if (interpolator == null) {
+            throw new IllegalArgumentException("interpolator == null");
+        }
+        mInterpolator = interpolator;
+    }
+
+    /**
+     * <p>Set the values and colors of every progress segment at once. Segment 0 is the
+     * primary progress, segment 1 the secondary progress; lower values are drawn on top of the
+     * higher ones, on equal values the segment with the lower index wins. The two-value API
+     * ({@link #setProgress(int)}, {@link #setSecondaryProgressColor(int)}...) keeps working on
+     * the first two segments. Must be called on the UI thread.</p>
+     *
+     * @param values the segment values, between 0 and {@link #getMax()}; 2 to 8 values
+     * @param colors the segment colors, one per value
+     *
+     * @see #setSegmentValue(int, int)
+     * @see #setSegmentColor(int, int)
+     */
+    public void setSegments(int[] values, int[] colors) {
+        if (values.length != colors.length) {
+            throw new IllegalArgumentException("Got " + values.length + " values but " + colors.length + " colors");
+        }
+        final long[] longValues = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            longValues[i] = values[i];
+        }
+        setSegments(longValues, colors);
+    }
+
+    /**
+     * <p>Same as {@link #setSegments(int[], int[])}, with 64-bit values. Must be called on
+     * the UI thread.</p>
+     *
+     * @param values the segment values, between 0 and {@link #getMaxLong()}; 2 to 8 values
+     * @param colors the segment colors, one per value
+     */
+    public void setSegments(long[] values, int[] colors) {
+        if (values.length != colors.length) {
+            throw new IllegalArgumentException("Got " + values.length + " values but " + colors.length + " colors");
+        }
+        ProgressState current;
+        ProgressState updated;
+        do {
+            current = mState.get();
+            updated = current.withValues(values);
+        } while (!mState.compareAndSet(current, updated));
+
+        for (int i = 0; i < colors.length; i++) {
+            updateSegmentColor(i, colors[i]);
+        }
+        mProgressColor = colors[0];
+        mSecondaryProgressColor = colors[1];
+        updateProgressDrawableColors();
+
+        applySegments(RefreshSlots.pendingBits(ALL_SLOTS, false));
+        invalidate();
+    }
+
+    /**
+     * <p>Return the number of progress segments, 2 unless more were set with
+     * {@link #setSegments(int[], int[])}.</p>
+     *
+     * @return the number of segments
+     */
+    public int getSegmentCount() {
+        return mState.get().getSegmentCount();
+    }
+
+    /**
+     * <p>Get the value of a progress segment.</p>
+     *
+     * @param index the segment index, 0 being the primary progress
+     *
+     * @return the segment value, between 0 and {@link #getMax()}; {@link Integer#MAX_VALUE}
+     * if it does not fit in an int
+     */
+    public int getSegmentValue(int index) {
+        return toInt(mState.get().getValue(index));
+    }
+
+    /**
+     * <p>Get the 64-bit value of a progress segment.</p>
+     *
+     * @param index the segment index, 0 being the primary progress
+     *
+     * @return the segment value, between 0 and {@link #getMaxLong()}
+     */
+    public long getSegmentValueLong(int index) {
+        return mState.get().getValue(index);
+    }
+
+    /**
+     * <p>Set the value of a progress segment. Can be called from any thread.</p>
+     *
+     * @param index the segment index, 0 being the primary progress
+     * @param value the new value, between 0 and {@link #getMax()}
+     */
+    public void setSegmentValue(int index, int value) {
+        setSegmentValue(index, (long) value);
+    }
+
+    /**
+     * <p>Set the 64-bit value of a progress segment. Can be called from any thread.</p>
+     *
+     * @param index the segment index, 0 being the primary progress
+     * @param value the new value, between 0 and {@link #getMaxLong()}
+     */
+    public void setSegmentValue(int index, long value) {
+        countSetterCall();
+        while (!compareAndSetValue(mState.get(), index, value, false)) {
+            // lost the race against another writer, retry on the fresh snapshot
+        }
+    }
+
+    /**
+     * <p>Get the color of a progress segment.</p>
      *
-     * @return a {@link android.graphics.drawable.Drawable} instance
+     * @param index the segment index, 0 being the primary progress
      *
-     * @see #setProgressDrawable(android.graphics.drawable.Drawable)
+     * @return the segment color
+     *
+     * @throws IllegalArgumentException if the index is not between 0 and 7
      */
-    public Drawable getProgressDrawable() {
-        return mProgressDrawable;
+    public int getSegmentColor(int index) {
+        checkSegmentIndex(index);
+        return mSegmentColors[index];
     }
 
     /**
-     * <p>Define the drawable used to draw the progress bar in
-     * progress mode.</p>
+     * <p>Set the color of a progress segment.</p>
      *
-     * @param d the new drawable
+     * @param index the segment index, 0 being the primary progress; a color can be set for a
+     *              segment before the bar has that many segments
+     * @param color the new color; must be a valid color.
      *
-     * @see #getProgressDrawable()
+     * @throws IllegalArgumentException if the index is not between 0 and 7
      */
-    public void setProgressDrawable(Drawable d) {
-        boolean needUpdate;
-        if (mProgressDrawable != null && d != mProgressDrawable) {
-            mProgressDrawable.setCallback(null);
-            needUpdate = true;
-        } else {
-            needUpdate = false;
+    public void setSegmentColor(int index, int color) {
+        checkSegmentIndex(index);
+        if (index == 0) {
+            setProgressColor(color);
+        } else if (index == 1) {
+            setSecondaryProgressColor(color);
+        } else if (color != mSegmentColors[index]) {
+            updateSegmentColor(index, color);
+            invalidate();
         }
+    }
 
-        if (d != null) {
-            d.setCallback(this);
-
-            // Make sure the ProgressBar is always tall enough
-            int drawableHeight = d.getMinimumHeight();
-            if (mMaxHeight < drawableHeight) {
-                mMaxHeight = drawableHeight;
-                requestLayout();
-            }
+    private static void checkSegmentIndex(int index) {
+        if (index < 0 || index >= ProgressState.MAX_SEGMENTS) {
+            throw new IllegalArgumentException("A progress bar has at most " + ProgressState.MAX_SEGMENTS
+                    + " segments, got index " + index);
         }
-        mProgressDrawable = d;
-        mCurrentDrawable = d;
-        postInvalidate();
+    }
 
-        if (needUpdate) {
-            updateDrawableBounds(getWidth(), getHeight());
-            updateDrawableState();
-            doRefreshProgress(android.R.id.progress, mProgress, false, false);
-            doRefreshProgress(android.R.id.secondaryProgress, mSecondaryProgress, false, false);
-        }
+    /**
+     * <p>Return the number of pieces shown in {@link #RENDER_MODE_PIECE_MAP piece map}
+     * mode.</p>
+     *
+     * @return the number of pieces, 0 if none was set
+     */
+    public int getPieceCount() {
+        final PieceMap map = mPieceMap;
+        return map != null ? map.getPieceCount() : 0;
     }
 
-    private synchronized void doRefreshProgress(int id, int progress, boolean fromUser,
-                                                boolean callBackToApp) {
-        float scale = mMax > 0 ? (float) progress / (float) mMax : 0;
-        final Drawable d = mCurrentDrawable;
-        if (d != null) {
-            Drawable progressDrawable = null;
-            if (d instanceof LayerDrawable) {
-                progressDrawable = ((LayerDrawable) d).findDrawableByLayerId(id);
-            }
+    /**
+     * <p>Set the number of pieces of the download shown in
+     * {@link #RENDER_MODE_PIECE_MAP piece map} mode; every piece starts as
+     * {@link #PIECE_MISSING missing}. The pieces are drawn from a one pixel tall bitmap, with
+     * at most one column per pixel of width: a column covering several pieces is drawn as had
+     * if all of them are, as missing if none is had or downloading, as downloading otherwise.
+     * Must be called on the UI thread.</p>
+     *
+     * @param pieceCount the number of pieces, at least 1
+     *
+     * @see #setPieceState(int, int)
+     */
+    public void setPieceCount(int pieceCount) {
+        final PieceMap map = new PieceMap(pieceCount);
+        map.layout(mContentWidth);
+        mPieceMap = map;
+        invalidate();
+    }
 
-            final int level = (int) (scale * MAX_LEVEL);
-            (progressDrawable != null ? progressDrawable : d).setLevel(level);
-        } else {
-            invalidate();
+    /**
+     * <p>Get the state of a piece.</p>
+     *
+     * @param piece the piece index
+     *
+     * @return {@link #PIECE_MISSING}, {@link #PIECE_DOWNLOADING} or {@link #PIECE_HAVE}
+     */
+    public int getPieceState(int piece) {
+        return requirePieceMap().getState(piece);
+    }
+
+    /**
+     * <p>Set the state of a piece. Only the pixels showing the piece are re-colored, once
+     * per frame whatever the number of calls in between. Can be called from any thread.</p>
+     *
+     * @param piece the piece index
+     * @param state {@link #PIECE_MISSING}, {@link #PIECE_DOWNLOADING} or {@link #PIECE_HAVE}
+     */
+    public void setPieceState(int piece, int state) {
+        if (requirePieceMap().setState(piece, state)) {
+            schedulePieceMapUpdate();
         }
     }
 
-    private synchronized void refreshProgress(int id, int progress, boolean fromUser) {
-        if (mUiThreadId == Thread.currentThread().getId()) {
-            doRefreshProgress(id, progress, fromUser, true);
-        } else {
-            if (mRefreshProgressRunnable == null) {
-                mRefreshProgressRunnable = new RefreshProgressRunnable();
-            }
+    /**
+     * <p>Set the state of every piece from bitfields: pieces in <tt>have</tt> are had, other
+     * pieces in <tt>downloading</tt> are being downloaded, the rest is missing. Can be called
+     * from any thread.</p>
+     *
+     * @param have        the pieces available
+     * @param downloading the pieces being downloaded, may be null
+     */
+    public void setPieces(BitSet have, BitSet downloading) {
+        final PieceMap map = requirePieceMap();
+        boolean schedule = false;
+        for (int piece = 0; piece < map.getPieceCount(); piece++) {
+            final int state = have.get(piece) ? PIECE_HAVE
+                    : downloading != null && downloading.get(piece) ? PIECE_DOWNLOADING : PIECE_MISSING;
+            schedule |= map.setState(piece, state);
+        }
+        if (schedule) {
+            schedulePieceMapUpdate();
+        }
+    }
 
-            final RefreshData rd = RefreshData.obtain(id, progress, fromUser);
-            mRefreshData.add(rd);
-            if (mAttached && !mRefreshIsPosted) {
-                post(mRefreshProgressRunnable);
-                mRefreshIsPosted = true;
-            }
+    private PieceMap requirePieceMap() {
+        final PieceMap map = mPieceMap;
+        if (map == null) {
+            throw new IllegalStateException("No pieces, call setPieceCount() first");
         }
+        return map;
     }
 
-    synchronized void setProgress(int progress, boolean fromUser) {
-        if (progress < 0) {
-            progress = 0;
+    /**
+     * Asks for a frame to re-color the changed pieces. While detached the changes stay
+     * pending, they are applied on attach: the attach sets the flag before draining, the
+     * producers mark their piece before reading the flag.
+     */
+    private void schedulePieceMapUpdate() {
+        if (mAttached) {
+            mFrameScheduler.postFrameCallback(mRefreshProgressRunnable);
         }
+    }
 
-        if (progress > mMax) {
-            progress = mMax;
+    /**
+     * Re-colors the changed pieces and invalidates the columns showing them. Must be called on
+     * the UI thread.
+     */
+    private void applyPieceMap() {
+        final PieceMap map = mPieceMap;
+        if (map == null || mRenderMode != RENDER_MODE_PIECE_MAP
+                || !map.update(mProgressColor, mSecondaryProgressColor, getTrackColor())) {
+            return;
         }
-        //before updating progress, check if we need to switch the colors, by doing a double in memory check:
-        boolean isOrderChanged = (isNormalColorOrder() ^ checkIsNormalColorOrder(progress, mSecondaryProgress));
+        final long width = mContentWidth;
+        final int columns = map.getColumnCount();
+        final int paddingLeft = getPaddingLeft();
+        final int left = (int) (map.getDirtyLeft() * width / columns);
+        final int right = (int) (((map.getDirtyRight() + 1) * width + columns - 1) / columns);
+        invalidate(paddingLeft + left, 0, paddingLeft + right, getHeight());
+    }
 
-        if (progress != mProgress) {
-            mProgress = progress;
-            if (isOrderChanged) {
-                if (checkIsNormalColorOrder(mProgress, mSecondaryProgress)) {
-                    setProgressDrawable(mStraightDrawable);
-                } else {
-                    // in this case the primary progress (the overlay) is greater than secondary, so we should switch to the inversed coloring and reverse the values
-                    setProgressDrawable(mReversedDrawable);
-                }
-            } else {
-                //if the progress order has changed, then change the progress drawable, otherwise refresh progress
-                refreshProgress(android.R.id.progress, mProgress, fromUser);
+    /**
+     * <p>Get the scheduler that applies progress changes once per frame.</p>
+     *
+     * @return the current frame scheduler
+     *
+     * @see #setFrameScheduler(FrameScheduler)
+     */
+    public FrameScheduler getFrameScheduler() {
+        return mFrameScheduler;
+    }
+
+    /**
+     * <p>Set the scheduler that applies progress changes. By default progress changes are
+     * applied once per display frame through {@link FrameScheduler#getDefault()}; tests can
+     * supply a scheduler driven by a fake clock.</p>
+     *
+     * @param scheduler the new scheduler, must not be null
+     *
+     * @see #getFrameScheduler()
+     */
+    public void setFrameScheduler(FrameScheduler scheduler) {
+        if (scheduler == null) {
+            throw new IllegalArgumentException("scheduler == null");
+        }
+        final FrameScheduler previous = mFrameScheduler;
+        if (scheduler != previous) {
+            previous.removeFrameCallback(mRefreshProgressRunnable);
+            mFrameScheduler = scheduler;
+            // hand whatever was waiting on the previous scheduler over to the new one
+            mRefreshSlots.clearPosted();
+            if (mAttached && mRefreshSlots.offer(RefreshSlots.maskOf(RefreshSlots.SLOT_PROGRESS), false, true)) {
+                scheduler.postFrameCallback(mRefreshProgressRunnable);
             }
         }
     }
@@ -354,14 +1851,26 @@ public class MulticolorProgressBar extends View {
      * <p>Get the progress bar's current level of progress. Return 0 when the
      * progress bar is in indeterminate mode.</p>
      *
-     * @return the current progress, between 0 and {@link #getMax()}
+     * @return the current progress, between 0 and {@link #getMax()}; {@link Integer#MAX_VALUE}
+     * if it does not fit in an int, see {@link #getProgressLong()}
      *
      * @see #setProgress(int)
      * @see #setMax(int)
      * @see #getMax()
      */
-    public synchronized int getProgress() {
-        return mProgress;
+    public int getProgress() {
+        return toInt(mState.get().progress);
+    }
+
+    /**
+     * <p>Get the progress bar's current level of progress, as a 64-bit value.</p>
+     *
+     * @return the current progress, between 0 and {@link #getMaxLong()}
+     *
+     * @see #setProgress(long)
+     */
+    public long getProgressLong() {
+        return mState.get().progress;
     }
 
     /**
@@ -373,7 +1882,20 @@ public class MulticolorProgressBar extends View {
      * @see #getProgress()
      * @see #incrementProgressBy(int)
      */
-    public synchronized void setProgress(int progress) {
+    public void setProgress(int progress) {
+        setProgress(progress, false);
+    }
+
+    /**
+     * <p>Set the current progress to the specified 64-bit value, e.g. a raw byte counter.
+     * It is mapped to pixels with exact integer arithmetic. Can be called from any thread.</p>
+     *
+     * @param progress the new progress, between 0 and {@link #getMaxLong()}
+     *
+     * @see #getProgressLong()
+     * @see #incrementProgressBy(long)
+     */
+    public void setProgress(long progress) {
         setProgress(progress, false);
     }
 
@@ -385,7 +1907,12 @@ public class MulticolorProgressBar extends View {
     public void setProgressColor(int progressColor) {
         if (progressColor != mProgressColor) {
             mProgressColor = progressColor;
-            doUpdateProgressColor(android.R.id.progress, mProgressColor);
+            updateProgressDrawableColors();
+            updateSegmentColor(0, mProgressColor);
+            if (mRenderMode != RENDER_MODE_DRAWABLE) {
+                // drawables repaint through their callback, paints and bitmaps do not
+                invalidate();
+            }
         }
     }
 
@@ -393,14 +1920,26 @@ public class MulticolorProgressBar extends View {
      * <p>Get the progress bar's current level of secondary progress. Return 0 when the
      * progress bar is in indeterminate mode.</p>
      *
-     * @return the current secondary progress, between 0 and {@link #getMax()}
+     * @return the current secondary progress, between 0 and {@link #getMax()};
+     * {@link Integer#MAX_VALUE} if it does not fit in an int, see {@link #getSecondaryProgressLong()}
      *
      * @see #setSecondaryProgress(int)
      * @see #setMax(int)
      * @see #getMax()
      */
-    public synchronized int getSecondaryProgress() {
-        return mSecondaryProgress;
+    public int getSecondaryProgress() {
+        return toInt(mState.get().secondaryProgress);
+    }
+
+    /**
+     * <p>Get the progress bar's current level of secondary progress, as a 64-bit value.</p>
+     *
+     * @return the current secondary progress, between 0 and {@link #getMaxLong()}
+     *
+     * @see #setSecondaryProgress(long)
+     */
+    public long getSecondaryProgressLong() {
+        return mState.get().secondaryProgress;
     }
 
     /**
@@ -414,30 +1953,23 @@ public class MulticolorProgressBar extends View {
      * @see #getSecondaryProgress()
      * @see #incrementSecondaryProgressBy(int)
      */
-    public synchronized void setSecondaryProgress(int secondaryProgress) {
-        if (secondaryProgress < 0) {
-            secondaryProgress = 0;
-        }
-
-        if (secondaryProgress > mMax) {
-            secondaryProgress = mMax;
-        }
-        //before updating progress, check if we need to switch the colors, by doing a double in memory check:
-        boolean isOrderChanged = (isNormalColorOrder() ^ checkIsNormalColorOrder(mProgress, secondaryProgress));
-
+    public void setSecondaryProgress(int secondaryProgress) {
+        setSecondaryProgress((long) secondaryProgress);
+    }
 
-        if (secondaryProgress != mSecondaryProgress) {
-            mSecondaryProgress = secondaryProgress;
-            if (isOrderChanged) {
-                if (checkIsNormalColorOrder(mProgress, mSecondaryProgress)) {
-                    setProgressDrawable(mStraightDrawable);
-                } else {
-                    // in this case the primary progress (the overlay) is greater than secondary, so we should switch to the inversed coloring and reverse the values
-                    setProgressDrawable(mReversedDrawable);
-                }
-            } else {
-                refreshProgress(android.R.id.secondaryProgress, mSecondaryProgress, false);
-            }
+    /**
+     * <p>Set the current secondary progress to the specified 64-bit value. Can be called from
+     * any thread.</p>
+     *
+     * @param secondaryProgress the new secondary progress, between 0 and {@link #getMaxLong()}
+     *
+     * @see #getSecondaryProgressLong()
+     * @see #incrementSecondaryProgressBy(long)
+     */
+    public void setSecondaryProgress(long secondaryProgress) {
+        countSetterCall();
+        while (!compareAndSetValue(mState.get(), RefreshSlots.SLOT_SECONDARY_PROGRESS, secondaryProgress, false)) {
+            // lost the race against another writer, retry on the fresh snapshot
         }
     }
 
@@ -449,21 +1981,113 @@ public class MulticolorProgressBar extends View {
     public void setSecondaryProgressColor(int secondaryProgressColor) {
         if (secondaryProgressColor != mSecondaryProgressColor) {
             mSecondaryProgressColor = secondaryProgressColor;
-            doUpdateProgressColor(android.R.id.secondaryProgress, mSecondaryProgressColor);
+            updateProgressDrawableColors();
+            updateSegmentColor(1, mSecondaryProgressColor);
+            if (mRenderMode != RENDER_MODE_DRAWABLE) {
+                // drawables repaint through their callback, paints and bitmaps do not
+                invalidate();
+            }
+        }
+    }
+
+    /**
+     * <p>Set max, progress and secondary progress in one atomic step: readers never see a
+     * mix of old and new values, the color order is checked once and the bar is refreshed and
+     * invalidated once. Can be called from any thread.</p>
+     *
+     * @param max               the upper range of this progress bar
+     * @param progress          the new progress, between 0 and <tt>max</tt>
+     * @param secondaryProgress the new secondary progress, between 0 and <tt>max</tt>
+     *
+     * @see #setMax(int)
+     * @see #setProgress(int)
+     * @see #setSecondaryProgress(int)
+     */
+    public void setProgressValues(int max, int progress, int secondaryProgress) {
+        setProgressValues((long) max, (long) progress, (long) secondaryProgress);
+    }
+
+    /**
+     * <p>Same as {@link #setProgressValues(int, int, int)}, with 64-bit values. Can be called
+     * from any thread.</p>
+     *
+     * @param max               the upper range of this progress bar
+     * @param progress          the new progress, between 0 and <tt>max</tt>
+     * @param secondaryProgress the new secondary progress, between 0 and <tt>max</tt>
+     */
+    public void setProgressValues(long max, long progress, long secondaryProgress) {
+        countSetterCall();
+        ProgressState current;
+        ProgressState updated;
+        do {
+            current = mState.get();
+            updated = current.withMaxAndProgress(max, progress, secondaryProgress);
+            if (updated == current) {
+                countDroppedUpdate();
+                return;
+            }
+        } while (!mState.compareAndSet(current, updated));
+
+        final int slotMask = updated.max != current.max ? ALL_SLOTS
+                : RefreshSlots.maskOf(RefreshSlots.SLOT_PROGRESS) | RefreshSlots.maskOf(RefreshSlots.SLOT_SECONDARY_PROGRESS);
+        if (mOnProgressChangeListener == null && isVisuallyUnchanged(updated, slotMask)) {
+            mSuppressedUpdates.incrementAndGet();
+            countDroppedUpdate();
+        } else {
+            refreshProgress(slotMask, false);
+        }
+    }
+
+    /**
+     * <p>Same as {@link #setProgressValues(int, int, int)}, also changing the two progress
+     * colors within the same refresh. Must be called on the UI thread.</p>
+     *
+     * @param max                    the upper range of this progress bar
+     * @param progress               the new progress, between 0 and <tt>max</tt>
+     * @param secondaryProgress      the new secondary progress, between 0 and <tt>max</tt>
+     * @param progressColor          the new progress color
+     * @param secondaryProgressColor the new secondary progress color
+     */
+    public void setProgressValues(int max, int progress, int secondaryProgress,
+                                  int progressColor, int secondaryProgressColor) {
+        final boolean colorsChanged = progressColor != mProgressColor
+                || secondaryProgressColor != mSecondaryProgressColor;
+        if (colorsChanged) {
+            // the repaint caused by the new colors is issued once, below
+            mSuppressDrawableInvalidation = true;
+            setProgressColor(progressColor);
+            setSecondaryProgressColor(secondaryProgressColor);
+            mSuppressDrawableInvalidation = false;
+        }
+        setProgressValues(max, progress, secondaryProgress);
+        if (colorsChanged) {
+            invalidate();
         }
     }
 
     /**
      * <p>Return the upper limit of this progress bar's range.</p>
      *
-     * @return a positive integer
+     * @return a positive integer; {@link Integer#MAX_VALUE} if the max does not fit in an
+     * int, see {@link #getMaxLong()}
      *
      * @see #setMax(int)
      * @see #getProgress()
      * @see #getSecondaryProgress()
      */
-    public synchronized int getMax() {
-        return mMax;
+    public int getMax() {
+        return toInt(mState.get().max);
+    }
+
+    /**
+     * <p>Return the upper limit of this progress bar's range, as a 64-bit value.</p>
+     *
+     * @return a positive long
+     *
+     * @see #setMax(long)
+     */
+    public long getMaxLong() {
+        return mState.get().max;
     }
 
     /**
@@ -475,23 +2099,35 @@ public class MulticolorProgressBar extends View {
      * @see #setProgress(int)
      * @see #setSecondaryProgress(int)
      */
-    public synchronized void setMax(int max) {
-        if (max < 0) {
-            max = 0;
-        }
-        if (max != mMax) {
-            mMax = max;
-            postInvalidate();
+    public void setMax(int max) {
+        setMax((long) max);
+    }
 
-            if (mProgress > max) {
-                mProgress = max;
-            }
-            refreshProgress(android.R.id.progress, mProgress, false);
-            if (mSecondaryProgress > max) {
-                mSecondaryProgress = max;
+    /**
+     * <p>Set the range of the progress bar to 0...<tt>max</tt>, e.g. the size in bytes of a
+     * transfer. Can be called from any thread.</p>
+     *
+     * @param max the upper range of this progress bar
+     *
+     * @see #getMaxLong()
+     * @see #setProgress(long)
+     * @see #setSecondaryProgress(long)
+     */
+    public void setMax(long max) {
+        countSetterCall();
+        ProgressState current;
+        ProgressState updated;
+        do {
+            current = mState.get();
+            updated = current.withMax(max);
+            if (updated == current) {
+                countDroppedUpdate();
+                return;
             }
-            refreshProgress(android.R.id.secondaryProgress, mSecondaryProgress, false);
-        }
+        } while (!mState.compareAndSet(current, updated));
+
+        // every edge moves: the refresh pass repaints the union of their bands
+        refreshProgress(ALL_SLOTS, false);
     }
 
     /**
@@ -501,8 +2137,25 @@ public class MulticolorProgressBar extends View {
      *
      * @see #setProgress(int)
      */
-    public synchronized final void incrementProgressBy(int diff) {
-        setProgress(mProgress + diff);
+    public final void incrementProgressBy(int diff) {
+        incrementProgressBy((long) diff);
+    }
+
+    /**
+     * <p>Increase the progress bar's progress by the specified 64-bit amount, e.g. the bytes
+     * just transferred. Can be called from any thread.</p>
+     *
+     * @param diff the amount by which the progress must be increased
+     *
+     * @see #setProgress(long)
+     */
+    public final void incrementProgressBy(long diff) {
+        countSetterCall();
+        ProgressState current;
+        do {
+            current = mState.get();
+        } while (!compareAndSetValue(current, RefreshSlots.SLOT_PROGRESS,
+                ProgressState.saturatedAdd(current.progress, diff), false));
     }
 
     /**
@@ -512,8 +2165,25 @@ public class MulticolorProgressBar extends View {
      *
      * @see #setSecondaryProgress(int)
      */
-    public synchronized final void incrementSecondaryProgressBy(int diff) {
-        setSecondaryProgress(mSecondaryProgress + diff);
+    public final void incrementSecondaryProgressBy(int diff) {
+        incrementSecondaryProgressBy((long) diff);
+    }
+
+    /**
+     * <p>Increase the progress bar's secondary progress by the specified 64-bit amount. Can be
+     * called from any thread.</p>
+     *
+     * @param diff the amount by which the secondary progress must be increased
+     *
+     * @see #setSecondaryProgress(long)
+     */
+    public final void incrementSecondaryProgressBy(long diff) {
+        countSetterCall();
+        ProgressState current;
+        do {
+            current = mState.get();
+        } while (!compareAndSetValue(current, RefreshSlots.SLOT_SECONDARY_PROGRESS,
+                ProgressState.saturatedAdd(current.secondaryProgress, diff), false));
     }
 
     private void updateDrawableBounds(int w, int h) {
@@ -528,6 +2198,12 @@ public class MulticolorProgressBar extends View {
         if (mProgressDrawable != null) {
             mProgressDrawable.setBounds(0, 0, right, bottom);
         }
+        if (mStraightDrawable != null) {
+            mStraightDrawable.setBounds(0, 0, right, bottom);
+        }
+        if (mReversedDrawable != null) {
+            mReversedDrawable.setBounds(0, 0, right, bottom);
+        }
     }
 
     private void updateDrawableState() {
@@ -536,6 +2212,12 @@ public class MulticolorProgressBar extends View {
         if (mProgressDrawable != null && mProgressDrawable.isStateful()) {
             mProgressDrawable.setState(state);
         }
+        if (mStraightDrawable != null && mStraightDrawable.isStateful()) {
+            mStraightDrawable.setState(state);
+        }
+        if (mReversedDrawable != null && mReversedDrawable.isStateful()) {
+            mReversedDrawable.setState(state);
+        }
     }
 
     @Override
@@ -547,7 +2229,16 @@ public class MulticolorProgressBar extends View {
 
     @Override
     protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        // the whole view is redrawn after a size change, the dirty band is not needed
         updateDrawableBounds(w, h);
+        mCachedBackground = null;
+        mContentWidth = w - getPaddingLeft() - getPaddingRight();
+        final PieceMap map = mPieceMap;
+        if (map != null) {
+            map.layout(mContentWidth);
+        }
+        // every value maps to new pixels: re-apply them all, suppressed ones included
+        applySegments(RefreshSlots.pendingBits(ALL_SLOTS, false));
     }
 
     @Override
@@ -558,8 +2249,57 @@ public class MulticolorProgressBar extends View {
     }
 
     @Override
-    protected synchronized void onDraw(Canvas canvas) {
+    public void invalidate() {
+        final ProgressBarMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onInvalidate();
+        }
+        super.invalidate();
+    }
+
+    @Override
+    public void invalidate(int l, int t, int r, int b) {
+        final ProgressBarMetrics metrics = mMetrics;
+        if (metrics != null) {
+            metrics.onInvalidate();
+        }
+        super.invalidate(l, t, r, b);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
         super.onDraw(canvas);
+        final boolean trace = ProgressTrace.sEnabled;
+        if (trace) {
+            ProgressTrace.begin("MCPB onDraw");
+        }
+        final ProgressBarMetrics metrics = mMetrics;
+        if (metrics == null) {
+            drawBar(canvas);
+        } else {
+            final long start = System.nanoTime();
+            drawBar(canvas);
+            metrics.onDraw(System.nanoTime() - start);
+        }
+        if (trace) {
+            ProgressTrace.end();
+        }
+    }
+
+    private void drawBar(Canvas canvas) {
+        stepAnimation();
+
+        if (mRenderMode == RENDER_MODE_PIECE_MAP) {
+            drawPieceMap(canvas);
+            return;
+        }
+        if (mRenderMode == RENDER_MODE_FLAT) {
+            final int width = getWidth() - getPaddingLeft() - getPaddingRight();
+            final int height = getHeight() - getPaddingTop() - getPaddingBottom();
+            mFlatRenderer.drawEdges(canvas, getPaddingLeft(), getPaddingTop(), width, height,
+                    mSegmentEdges, mSegmentEdgeCount, mSegmentColors);
+            return;
+        }
 
         Drawable d = mCurrentDrawable;
         if (d != null) {
@@ -567,40 +2307,89 @@ public class MulticolorProgressBar extends View {
             // rotates properly in its animation
             canvas.save();
             canvas.translate(getPaddingLeft(), getPaddingTop());
-            d.draw(canvas);
+            // layers are drawn full length on top of each other, not clipped to their visible
+            // spans: the progress 9-patches are translucent, so what lies below shows through
+            // and clipping it away would change the picture. Flat mode is the overdraw-free one.
+            if (mShownCount > ProgressState.MIN_SEGMENTS && d instanceof LayerDrawable) {
+                drawSegments(canvas, (LayerDrawable) d);
+            } else if (mBackgroundCacheEnabled && d instanceof LayerDrawable) {
+                drawLayers(canvas, (LayerDrawable) d);
+            } else {
+                d.draw(canvas);
+            }
             canvas.restore();
         }
     }
 
+    private void drawPieceMap(Canvas canvas) {
+        final int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        final int height = getHeight() - getPaddingTop() - getPaddingBottom();
+        final PieceMap map = mPieceMap;
+        if (map == null) {
+            // no pieces yet: an empty track
+            mFlatRenderer.drawEdges(canvas, getPaddingLeft(), getPaddingTop(), width, height,
+                    mSegmentEdges, 0, mSegmentColors);
+            return;
+        }
+        // picks up color changes, and pieces changed since the last frame
+        map.update(mProgressColor, mSecondaryProgressColor, getTrackColor());
+        map.draw(canvas, getPaddingLeft(), getPaddingTop(), width, height);
+    }
+
+    /**
+     * Draws the background layer, then the progress layer once per segment, highest value
+     * first, re-leveling and re-tinting it in between.
+     */
+    private void drawSegments(Canvas canvas, LayerDrawable layers) {
+        final Drawable background = layers.findDrawableByLayerId(android.R.id.background);
+        if (background != null) {
+            drawBackgroundLayer(canvas, background);
+        }
+        final Drawable segment = layers.findDrawableByLayerId(android.R.id.progress);
+        if (segment == null) {
+            return;
+        }
+        // level and filter changes below must not schedule another frame
+        mSuppressDrawableInvalidation = true;
+        final int[] order = mDrawOrder;
+        final int count = ProgressState.sortDrawOrder(mShownValues, mShownCount, order);
+        for (int i = 0; i < count; i++) {
+            final int index = order[i];
+            segment.setColorFilter(mSegmentFilters[index]);
+            segment.setLevel(toLevel(mShownValues[index], mShownMax));
+            segment.draw(canvas);
+        }
+        // leave the layer as the two-segment path expects it
+        segment.setColorFilter(mSegmentFilters[0]);
+        segment.setLevel(toLevel(mShownValues[0], mShownMax));
+        mSuppressDrawableInvalidation = false;
+    }
+
     @Override
     protected void onAttachedToWindow() {
         super.onAttachedToWindow();
-        if (mRefreshData != null) {
-            synchronized (this) {
-                final int count = mRefreshData.size();
-                for (int i = 0; i < count; i++) {
-                    final RefreshData rd = mRefreshData.get(i);
-                    doRefreshProgress(rd.id, rd.progress, rd.fromUser, true);
-                    rd.recycle();
-                }
-                mRefreshData.clear();
-            }
-        }
+        // flag first, then drain: a producer that read the flag before it was set parks its slot
+        // and reads the flag again, so either the drain below sees the slot or the producer posts
         mAttached = true;
+        applyPendingRefreshes();
+        applyPieceMap();
     }
 
     @Override
     protected void onDetachedFromWindow() {
-        if (mRefreshProgressRunnable != null) {
-            removeCallbacks(mRefreshProgressRunnable);
-        }
-        if (mRefreshProgressRunnable != null && mRefreshIsPosted) {
-            removeCallbacks(mRefreshProgressRunnable);
+        mAttached = false;
+        if (mAnimationTarget != null) {
+            // nothing to animate off screen: land on the target
+            applySegments(RefreshSlots.pendingBits(ALL_SLOTS, false));
         }
+        mFrameScheduler.removeFrameCallback(mRefreshProgressRunnable);
+        removeCallbacks(mDeferredRefresh);
+        releaseBackgroundCache();
+        // pending slots survive, they are applied on the next attach
+        mRefreshSlots.clearPosted();
         // This should come after stopAnimation(), otherwise an invalidate message remains in the
         // queue, which can prevent the entire view hierarchy from being GC'ed during a rotation
         super.onDetachedFromWindow();
-        mAttached = false;
     }
 
     @Override
@@ -609,10 +2398,18 @@ public class MulticolorProgressBar extends View {
         Parcelable superState = super.onSaveInstanceState();
         SavedState ss = new SavedState(superState);
 
-        ss.progress = mProgress;
-        ss.secondaryProgress = mSecondaryProgress;
+        final ProgressState state = mState.get();
+        ss.progress = state.progress;
+        ss.secondaryProgress = state.secondaryProgress;
         ss.progressColor = mProgressColor;
         ss.secondaryProgressColor = mSecondaryProgressColor;
+        if (state.getSegmentCount() > ProgressState.MIN_SEGMENTS) {
+            ss.segmentValues = new long[state.getSegmentCount()];
+            for (int i = 0; i < ss.segmentValues.length; i++) {
+                ss.segmentValues[i] = state.getValue(i);
+            }
+            ss.segmentColors = Arrays.copyOf(mSegmentColors, ss.segmentValues.length);
+        }
         return ss;
     }
 
@@ -621,41 +2418,60 @@ public class MulticolorProgressBar extends View {
         SavedState ss = (SavedState) state;
         super.onRestoreInstanceState(ss.getSuperState());
 
-        setProgress(ss.progress);
-        setSecondaryProgress(ss.secondaryProgress);
-        setProgressColor(ss.progressColor);
-        setSecondaryProgressColor(ss.secondaryProgressColor);
+        if (ss.segmentValues != null) {
+            setSegments(ss.segmentValues, ss.segmentColors);
+        } else {
+            setProgress(ss.progress);
+            setSecondaryProgress(ss.secondaryProgress);
+            setProgressColor(ss.progressColor);
+            setSecondaryProgressColor(ss.secondaryProgressColor);
+        }
     }
 
     @Override
     public void invalidateDrawable(Drawable dr) {
+        if (mSuppressDrawableInvalidation) {
+            return;
+        }
+        if (dr != mCurrentDrawable && (dr == mStraightDrawable || dr == mReversedDrawable)) {
+            // the hidden half of the pair is kept leveled, but it is not on screen
+            return;
+        }
         super.invalidateDrawable(dr);
     }
 
     @Override
     protected boolean verifyDrawable(Drawable who) {
-        return who == mProgressDrawable || super.verifyDrawable(who);
+        return who == mProgressDrawable || who == mStraightDrawable || who == mReversedDrawable
+                || super.verifyDrawable(who);
     }
 
     @Override
     protected void drawableStateChanged() {
         super.drawableStateChanged();
         updateDrawableState();
+        // a stateful background may look different now
+        mCachedBackground = null;
     }
 
     @Override
     public void jumpDrawablesToCurrentState() {
         super.jumpDrawablesToCurrentState();
         if (mProgressDrawable != null) mProgressDrawable.jumpToCurrentState();
+        if (mStraightDrawable != null) mStraightDrawable.jumpToCurrentState();
+        if (mReversedDrawable != null) mReversedDrawable.jumpToCurrentState();
     }
 
     @Override
-    protected synchronized void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
         Drawable d = mCurrentDrawable;
 
         int dw = 0;
         int dh = 0;
-        if (d != null) {
+        if (mRenderMode != RENDER_MODE_DRAWABLE) {
+            dw = mMinWidth;
+            dh = mMinHeight;
+        } else if (d != null) {
             dw = Math.max(mMinWidth, Math.min(mMaxWidth, d.getIntrinsicWidth()));
             dh = Math.max(mMinHeight, Math.min(mMaxHeight, d.getIntrinsicHeight()));
         }
@@ -668,60 +2484,32 @@ public class MulticolorProgressBar extends View {
     }
 
     /**
-     * @param progress
-     * @param secondaryProgress
-     *
-     * @return
-     */
-    private int compareNewProgress(int progress, int secondaryProgress) {
-        return (progress - secondaryProgress);
-    }
-
-    /**
-     * Returns whether if colors are shown as normal ordering or if they are drawn reversed.
-     * It looks up at stored parameter, does not recalculate anything.
-     */
-    private boolean isNormalColorOrder() {
-        return (compareNewProgress(mProgress, mSecondaryProgress) <= 0);
-    }
-
-    //Colored
-
-    /**
-     * This function calculates (in memory) the ordering of the two given parameter and returns the result as a boolean.
-     *
-     * @param progress
-     * @param secondaryProgress
+     * Receives the progress changes of a {@link MulticolorProgressBar}, coalesced to at most
+     * one call per frame, on the UI thread.
      *
-     * @return
+     * @see #setOnProgressChangeListener(OnProgressChangeListener)
      */
-    private boolean checkIsNormalColorOrder(int progress, int secondaryProgress) {
-        return (compareNewProgress(progress, secondaryProgress) <= 0);
-    }
-
-    private static class RefreshData {
-        private static final int POOL_MAX = 24;
-        private static final Pools.SynchronizedPool<RefreshData> sPool =
-                new Pools.SynchronizedPool<RefreshData>(POOL_MAX);
-
-        public int id;
-        public int progress;
-        public boolean fromUser;
-
-        public static RefreshData obtain(int id, int progress, boolean fromUser) {
-            RefreshData rd = sPool.acquire();
-            if (rd == null) {
-                rd = new RefreshData();
-            }
-            rd.id = id;
-            rd.progress = progress;
-            rd.fromUser = fromUser;
-            return rd;
-        }
+    public interface OnProgressChangeListener {
+        /**
+         * Called when the progress or the secondary progress changed since the last call.
+         *
+         * @param bar               the progress bar whose values changed
+         * @param progress          the current progress
+         * @param secondaryProgress the current secondary progress
+         * @param fromUser          true if any of the coalesced changes was initiated by the
+         *                          user
+         */
+        void onProgressChanged(MulticolorProgressBar bar, long progress, long secondaryProgress,
+                               boolean fromUser);
 
-        public void recycle() {
-            sPool.release(this);
-        }
+        /**
+         * Called when the primary and secondary progress swapped their drawing order.
+         *
+         * @param bar         the progress bar whose order changed
+         * @param normalOrder true if the secondary progress is drawn below the primary one
+         *                    again, false if it is now drawn on top
+         */
+        void onColorOrderChanged(MulticolorProgressBar bar, boolean normalOrder);
     }
 
     static class SavedState extends BaseSavedState {
@@ -735,10 +2523,12 @@ public class MulticolorProgressBar extends View {
                 return new SavedState[size];
             }
         };
-        int progress;
-        int secondaryProgress;
+        long progress;
+        long secondaryProgress;
         int progressColor;
         int secondaryProgressColor;
+        long[] segmentValues;
+        int[] segmentColors;
 
         /**
          * Constructor called from {@link ProgressBar#onSaveInstanceState()}
@@ -752,33 +2542,40 @@ public class MulticolorProgressBar extends View {
          */
         private SavedState(Parcel in) {
             super(in);
-            progress = in.readInt();
-            secondaryProgress = in.readInt();
+            progress = in.readLong();
+            secondaryProgress = in.readLong();
             progressColor = in.readInt();
             secondaryProgressColor = in.readInt();
+            segmentValues = in.createLongArray();
+            segmentColors = in.createIntArray();
         }
 
         @Override
         public void writeToParcel(Parcel out, int flags) {
             super.writeToParcel(out, flags);
-            out.writeInt(progress);
-            out.writeInt(secondaryProgress);
+            out.writeLong(progress);
+            out.writeLong(secondaryProgress);
             out.writeInt(progressColor);
             out.writeInt(secondaryProgressColor);
+            out.writeLongArray(segmentValues);
+            out.writeIntArray(segmentColors);
         }
     }
 
-    private class RefreshProgressRunnable implements Runnable {
-        public void run() {
-            synchronized (MulticolorProgressBar.this) {
-                final int count = mRefreshData.size();
-                for (int i = 0; i < count; i++) {
-                    final RefreshData rd = mRefreshData.get(i);
-                    doRefreshProgress(rd.id, rd.progress, rd.fromUser, true);
-                    rd.recycle();
-                }
-                mRefreshData.clear();
-                mRefreshIsPosted = false;
+    private class RefreshProgressRunnable implements FrameScheduler.Callback {
+        @Override
+        public void doFrame(long frameTimeNanos) {
+            if (deferRefresh(frameTimeNanos)) {
+                return;
+            }
+            final boolean trace = ProgressTrace.sEnabled;
+            if (trace) {
+                ProgressTrace.begin("MCPB refreshFrame");
+            }
+            applyPendingRefreshes();
+            applyPieceMap();
+            if (trace) {
+                ProgressTrace.end();
             }
         }
     }
@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * Copyright (C) 2014 Nicola Dorigatti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package it.ndorigatti.android.view;
+
+import android.content.Context;
+import android.graphics.Color;
+
+/**
+ * <p>
+ * Immutable description of a {@link MulticolorProgressBar} built in code: colors, range and
+ * values, sizes, render mode. A bar created from a spec with {@link #newBar(Context)} skips
+ * the styled attribute resolution of the XML constructors altogether, which makes it the cheap
+ * way to create bars for dynamic rows. One spec can be shared by any number of bars:
+ * </p>
+ * <pre>
+ * MulticolorProgressBarSpec spec = new MulticolorProgressBarSpec.Builder()
+ *     .setRenderMode(MulticolorProgressBar.RENDER_MODE_FLAT)
+ *     .setProgressColor(Color.RED)
+ *     .setMinHeight(heightPx)
+ *     .build();
+ * ...
+ * MulticolorProgressBar bar = spec.newBar(context);</pre>
+ * <p>
+ * Sizes are in pixels. In {@link MulticolorProgressBar#RENDER_MODE_DRAWABLE drawable} mode
+ * the progress drawables are resolved once per process and shared, in the other modes they
+ * are only loaded if the bar is switched to drawable mode later.
+ * </p>
+ */
+public final class MulticolorProgressBarSpec {
+    /**
+     * Size value meaning "the default of the bar".
+     */
+    public static final int SIZE_DEFAULT = -1;
+
+    final long max;
+    final long progress;
+    final long secondaryProgress;
+    final int progressColor;
+    final int secondaryProgressColor;
+    final int trackColor;
+    final float cornerRadius;
+    final int renderMode;
+    final int minWidth;
+    final int maxWidth;
+    final int minHeight;
+    final int maxHeight;
+    final int straightDrawableResId;
+    final int reversedDrawableResId;
+    final long animationDuration;
+    final boolean backgroundCacheEnabled;
+    final float maxRefreshRate;
+
+    private MulticolorProgressBarSpec(Builder builder) {
+        max = builder.mMax;
+        progress = builder.mProgress;
+        secondaryProgress = builder.mSecondaryProgress;
+        progressColor = builder.mProgressColor;
+        secondaryProgressColor = builder.mSecondaryProgressColor;
+        trackColor = builder.mTrackColor;
+        cornerRadius = builder.mCornerRadius;
+        renderMode = builder.mRenderMode;
+        minWidth = builder.mMinWidth;
+        maxWidth = builder.mMaxWidth;
+        minHeight = builder.mMinHeight;
+        maxHeight = builder.mMaxHeight;
+        straightDrawableResId = builder.mStraightDrawableResId;
+        reversedDrawableResId = builder.mReversedDrawableResId;
+        animationDuration = builder.mAnimationDuration;
+        backgroundCacheEnabled = builder.mBackgroundCacheEnabled;
+        maxRefreshRate = builder.mMaxRefreshRate;
+    }
+
+    /**
+     * <p>Create a fully configured bar from this spec. Must be called on the UI thread.</p>
+     *
+     * @param context the application environment
+     *
+     * @return a new bar
+     */
+    public MulticolorProgressBar newBar(Context context) {
+        return new MulticolorProgressBar(context, this);
+    }
+
+    /**
+     * Builds {@link MulticolorProgressBarSpec} instances. Defaults match a bar inflated from
+     * XML with the default style.
+     */
+    public static final class Builder {
+        private long mMax = 100;
+        private long mProgress;
+        private long mSecondaryProgress;
+        private int mProgressColor = Color.GREEN;
+        private int mSecondaryProgressColor = Color.BLUE;
+        private int mTrackColor = Color.LTGRAY;
+        private float mCornerRadius;
+        private int mRenderMode = MulticolorProgressBar.RENDER_MODE_DRAWABLE;
+        private int mMinWidth = SIZE_DEFAULT;
+        private int mMaxWidth = SIZE_DEFAULT;
+        private int mMinHeight = SIZE_DEFAULT;
+        private int mMaxHeight = SIZE_DEFAULT;
+        private int mStraightDrawableResId = R.drawable.mcp_progressbar_normal_drawable_list;
+        private int mReversedDrawableResId = R.drawable.mcp_progressbar_reverse_drawable_list;
+        private long mAnimationDuration;
+        private boolean mBackgroundCacheEnabled;
+        private float mMaxRefreshRate;
+
+        public Builder setMax(long max) {
+            mMax = max;
+            return this;
+        }
+
+        public Builder setProgress(long progress) {
+            mProgress = progress;
+            return this;
+        }
+
+        public Builder setSecondaryProgress(long secondaryProgress) {
+            mSecondaryProgress = secondaryProgress;
+            return this;
+        }
+
+        public Builder setProgressColor(int progressColor) {
+            mProgressColor = progressColor;
+            return this;
+        }
+
+        public Builder setSecondaryProgressColor(int secondaryProgressColor) {
+            mSecondaryProgressColor = secondaryProgressColor;
+            return this;
+        }
+
+        public Builder setTrackColor(int trackColor) {
+            mTrackColor = trackColor;
+            return this;
+        }
+
+        public Builder setCornerRadius(float cornerRadius) {
+            mCornerRadius = cornerRadius;
+            return this;
+        }
+
+        /**
+         * @param renderMode one of the {@code RENDER_MODE_*} constants of
+         *                   {@link MulticolorProgressBar}
+         */
+        public Builder setRenderMode(int renderMode) {
+            if (renderMode != MulticolorProgressBar.RENDER_MODE_DRAWABLE
+                    && renderMode != MulticolorProgressBar.RENDER_MODE_FLAT
+                    && renderMode != MulticolorProgressBar.RENDER_MODE_PIECE_MAP) {
+                throw new IllegalArgumentException("Unknown render mode " + renderMode);
+            }
+            mRenderMode = renderMode;
+            return this;
+        }
+
+        public Builder setMinWidth(int minWidth) {
+            mMinWidth = minWidth;
+            return this;
+        }
+
+        public Builder setMaxWidth(int maxWidth) {
+            mMaxWidth = maxWidth;
+            return this;
+        }
+
+        public Builder setMinHeight(int minHeight) {
+            mMinHeight = minHeight;
+            return this;
+        }
+
+        public Builder setMaxHeight(int maxHeight) {
+            mMaxHeight = maxHeight;
+            return this;
+        }
+
+        /**
+         * Sets the drawables used in drawable render mode, see
+         * {@link MulticolorProgressBar#setProgressDrawable(android.graphics.drawable.Drawable)}.
+         *
+         * @param straightResId the layer list drawn when the secondary progress is above the
+         *                      primary one
+         * @param reversedResId the layer list drawn otherwise
+         */
+        public Builder setProgressDrawables(int straightResId, int reversedResId) {
+            mStraightDrawableResId = straightResId;
+            mReversedDrawableResId = reversedResId;
+            return this;
+        }
+
+        public Builder setProgressAnimationDuration(long durationMillis) {
+            if (durationMillis < 0) {
+                throw new IllegalArgumentException("Negative animation duration " + durationMillis);
+            }
+            mAnimationDuration = durationMillis;
+            return this;
+        }
+
+        public Builder setBackgroundCacheEnabled(boolean enabled) {
+            mBackgroundCacheEnabled = enabled;
+            return this;
+        }
+
+        public Builder setMaxRefreshRate(float refreshesPerSecond) {
+            if (!(refreshesPerSecond >= 0)) {
+                throw new IllegalArgumentException("Invalid refresh rate " + refreshesPerSecond);
+            }
+            mMaxRefreshRate = refreshesPerSecond;
+            return this;
+        }
+
+        public MulticolorProgressBarSpec build() {
+            return new MulticolorProgressBarSpec(this);
+        }
+    }
+}
@@ -0,0 +1,492 @@
+/*******************************************************************************
+ * Copyright (C) 2014 Nicola Dorigatti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package it.ndorigatti.android.view;
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.util.AttributeSet;
+import android.util.SparseIntArray;
+import android.view.View;
+
+import java.util.Arrays;
+
+/**
+ * <p>
+ * Displays a grid of many flat two-value progress bars in a single view, e.g. a wall of
+ * thousands of concurrent transfers where one {@link MulticolorProgressBar} per transfer
+ * would be far too heavy. Bars are held in primitive arrays (max, progress, secondary
+ * progress and the two colors, per bar) and addressed by index.
+ * </p>
+ * <p>
+ * The whole grid is drawn in one {@code onDraw}: every visible span of every bar is collected
+ * into one batch per color, and each batch is issued as a single
+ * {@link Canvas#drawLines(float[], int, int, Paint)} call, with the stroke as tall as a bar.
+ * Updates only invalidate the cell of the bar that changed, and only if it moved by at least
+ * one pixel; rows outside the clip are not even looked at.
+ * </p>
+ * <p>
+ * As for {@link MulticolorProgressBar}, the lower of the two values is drawn on top, and the
+ * primary progress wins on equal values. Must be used on the UI thread.
+ * </p>
+ *
+ * @attr ref R.styleable#MulticolorProgressGridView_mcp_columnCount
+ * @attr ref R.styleable#MulticolorProgressGridView_mcp_barHeight
+ * @attr ref R.styleable#MulticolorProgressGridView_mcp_barSpacing
+ * @attr ref R.styleable#MulticolorProgressGridView_mcp_trackColor
+ */
+public class MulticolorProgressGridView extends View {
+    private static final long DEFAULT_MAX = 100;
+    private static final int DEFAULT_PROGRESS_COLOR = Color.GREEN;
+    private static final int DEFAULT_SECONDARY_PROGRESS_COLOR = Color.BLUE;
+    /**
+     * Floats per span in a batch: one line from (x0, y) to (x1, y).
+     */
+    private static final int FLOATS_PER_SPAN = 4;
+
+    private int mBarCount;
+    private long[] mMax = new long[0];
+    private long[] mProgress = new long[0];
+    private long[] mSecondaryProgress = new long[0];
+    private int[] mProgressColors = new int[0];
+    private int[] mSecondaryProgressColors = new int[0];
+    /**
+     * Pixel edges of each bar within its cell, kept in sync with the values.
+     */
+    private int[] mProgressEdges = new int[0];
+    private int[] mSecondaryProgressEdges = new int[0];
+
+    private int mColumnCount;
+    private int mBarHeight;
+    private int mBarSpacing;
+    private int mTrackColor;
+    private int mCellWidth;
+
+    private final Paint mBatchPaint = new Paint();
+    /**
+     * Color to batch index, cleared and refilled on every draw without releasing its storage.
+     */
+    private final SparseIntArray mBatchIndex = new SparseIntArray();
+    private int[] mBatchColors = new int[4];
+    private float[][] mBatchLines = new float[4][];
+    private int[] mBatchLengths = new int[4];
+    private int mBatchCount;
+    private final Rect mClipBounds = new Rect();
+    private final Rect mCellBounds = new Rect();
+
+    public MulticolorProgressGridView(Context context) {
+        this(context, null);
+    }
+
+    public MulticolorProgressGridView(Context context, AttributeSet attrs) {
+        this(context, attrs, 0);
+    }
+
+    public MulticolorProgressGridView(Context context, AttributeSet attrs, int defStyle) {
+        super(context, attrs, defStyle);
+        final float density = context.getResources().getDisplayMetrics().density;
+        mColumnCount = 1;
+        mBarHeight = (int) (4 * density + 0.5f);
+        mBarSpacing = (int) (2 * density + 0.5f);
+        mTrackColor = Color.LTGRAY;
+        mBatchPaint.setStrokeCap(Paint.Cap.BUTT);
+
+        TypedArray a = context.obtainStyledAttributes(attrs, R.styleable.MulticolorProgressGridView, defStyle, 0);
+        mColumnCount = Math.max(1, a.getInt(R.styleable.MulticolorProgressGridView_mcp_columnCount, mColumnCount));
+        mBarHeight = a.getDimensionPixelSize(R.styleable.MulticolorProgressGridView_mcp_barHeight, mBarHeight);
+        mBarSpacing = a.getDimensionPixelSize(R.styleable.MulticolorProgressGridView_mcp_barSpacing, mBarSpacing);
+        mTrackColor = a.getColor(R.styleable.MulticolorProgressGridView_mcp_trackColor, mTrackColor);
+        a.recycle();
+        mBatchPaint.setStrokeWidth(mBarHeight);
+    }
+
+    /**
+     * <p>Return the number of bars in the grid.</p>
+     *
+     * @return the number of bars
+     */
+    public int getBarCount() {
+        return mBarCount;
+    }
+
+    /**
+     * <p>Set the number of bars in the grid. Existing bars keep their values and colors, new
+     * bars start empty, with a max of 100 and the default colors.</p>
+     *
+     * @param barCount the new number of bars
+     */
+    public void setBarCount(int barCount) {
+        if (barCount < 0) {
+            throw new IllegalArgumentException("Negative bar count " + barCount);
+        }
+        if (barCount == mBarCount) {
+            return;
+        }
+        final int previous = mBarCount;
+        mMax = Arrays.copyOf(mMax, barCount);
+        mProgress = Arrays.copyOf(mProgress, barCount);
+        mSecondaryProgress = Arrays.copyOf(mSecondaryProgress, barCount);
+        mProgressColors = Arrays.copyOf(mProgressColors, barCount);
+        mSecondaryProgressColors = Arrays.copyOf(mSecondaryProgressColors, barCount);
+        mProgressEdges = Arrays.copyOf(mProgressEdges, barCount);
+        mSecondaryProgressEdges = Arrays.copyOf(mSecondaryProgressEdges, barCount);
+        for (int i = previous; i < barCount; i++) {
+            mMax[i] = DEFAULT_MAX;
+            mProgressColors[i] = DEFAULT_PROGRESS_COLOR;
+            mSecondaryProgressColors[i] = DEFAULT_SECONDARY_PROGRESS_COLOR;
+        }
+        mBarCount = barCount;
+        requestLayout();
+        invalidate();
+    }
+
+    /**
+     * <p>Get the number of bars on each row.</p>
+     *
+     * @return the number of columns
+     */
+    public int getColumnCount() {
+        return mColumnCount;
+    }
+
+    /**
+     * <p>Set the number of bars on each row; the bars share the width of the view.</p>
+     *
+     * @param columnCount the number of columns, at least 1
+     */
+    public void setColumnCount(int columnCount) {
+        if (columnCount < 1) {
+            throw new IllegalArgumentException("At least one column is needed, got " + columnCount);
+        }
+        if (columnCount != mColumnCount) {
+            mColumnCount = columnCount;
+            updateCells();
+            requestLayout();
+            invalidate();
+        }
+    }
+
+    /**
+     * <p>Get the height of each bar.</p>
+     *
+     * @return the height, in pixels
+     */
+    public int getBarHeight() {
+        return mBarHeight;
+    }
+
+    /**
+     * <p>Set the height of each bar.</p>
+     *
+     * @param barHeight the height, in pixels
+     */
+    public void setBarHeight(int barHeight) {
+        if (barHeight != mBarHeight) {
+            mBarHeight = Math.max(0, barHeight);
+            mBatchPaint.setStrokeWidth(mBarHeight);
+            requestLayout();
+            invalidate();
+        }
+    }
+
+    /**
+     * <p>Get the gap between two bars.</p>
+     *
+     * @return the gap, in pixels
+     */
+    public int getBarSpacing() {
+        return mBarSpacing;
+    }
+
+    /**
+     * <p>Set the gap between two bars, both horizontally and vertically.</p>
+     *
+     * @param barSpacing the gap, in pixels
+     */
+    public void setBarSpacing(int barSpacing) {
+        if (barSpacing != mBarSpacing) {
+            mBarSpacing = Math.max(0, barSpacing);
+            updateCells();
+            requestLayout();
+            invalidate();
+        }
+    }
+
+    /**
+     * <p>Get the color of the empty part of the bars.</p>
+     *
+     * @return the track color
+     */
+    public int getTrackColor() {
+        return mTrackColor;
+    }
+
+    /**
+     * <p>Set the color of the empty part of the bars.</p>
+     *
+     * @param trackColor the new color; must be a valid color.
+     */
+    public void setTrackColor(int trackColor) {
+        if (trackColor != mTrackColor) {
+            mTrackColor = trackColor;
+            invalidate();
+        }
+    }
+
+    /**
+     * <p>Set the range and both progress values of a bar.</p>
+     *
+     * @param index             the bar index
+     * @param max               the upper range of the bar
+     * @param progress          the new progress, between 0 and <tt>max</tt>
+     * @param secondaryProgress the new secondary progress, between 0 and <tt>max</tt>
+     */
+    public void setBar(int index, long max, long progress, long secondaryProgress) {
+        max = Math.max(0, max);
+        final boolean normalOrder = isNormalOrder(index);
+        mMax[index] = max;
+        mProgress[index] = clamp(progress, max);
+        mSecondaryProgress[index] = clamp(secondaryProgress, max);
+        updateCell(index, normalOrder);
+    }
+
+    /**
+     * <p>Set the primary progress of a bar.</p>
+     *
+     * @param index    the bar index
+     * @param progress the new progress, between 0 and {@link #getMax(int)}
+     */
+    public void setProgress(int index, long progress) {
+        final boolean normalOrder = isNormalOrder(index);
+        mProgress[index] = clamp(progress, mMax[index]);
+        updateCell(index, normalOrder);
+    }
+
+    /**
+     * <p>Set the secondary progress of a bar.</p>
+     *
+     * @param index             the bar index
+     * @param secondaryProgress the new secondary progress, between 0 and {@link #getMax(int)}
+     */
+    public void setSecondaryProgress(int index, long secondaryProgress) {
+        final boolean normalOrder = isNormalOrder(index);
+        mSecondaryProgress[index] = clamp(secondaryProgress, mMax[index]);
+        updateCell(index, normalOrder);
+    }
+
+    /**
+     * <p>Set the two progress colors of a bar.</p>
+     *
+     * @param index                  the bar index
+     * @param progressColor          the new progress color
+     * @param secondaryProgressColor the new secondary progress color
+     */
+    public void setBarColors(int index, int progressColor, int secondaryProgressColor) {
+        if (progressColor != mProgressColors[index] || secondaryProgressColor != mSecondaryProgressColors[index]) {
+            mProgressColors[index] = progressColor;
+            mSecondaryProgressColors[index] = secondaryProgressColor;
+            invalidateCell(index);
+        }
+    }
+
+    /**
+     * @return the upper range of the bar at <tt>index</tt>
+     */
+    public long getMax(int index) {
+        return mMax[index];
+    }
+
+    /**
+     * @return the primary progress of the bar at <tt>index</tt>
+     */
+    public long getProgress(int index) {
+        return mProgress[index];
+    }
+
+    /**
+     * @return the secondary progress of the bar at <tt>index</tt>
+     */
+    public long getSecondaryProgress(int index) {
+        return mSecondaryProgress[index];
+    }
+
+    /**
+     * @return the primary progress color of the bar at <tt>index</tt>
+     */
+    public int getProgressColor(int index) {
+        return mProgressColors[index];
+    }
+
+    /**
+     * @return the secondary progress color of the bar at <tt>index</tt>
+     */
+    public int getSecondaryProgressColor(int index) {
+        return mSecondaryProgressColors[index];
+    }
+
+    private static long clamp(long value, long max) {
+        if (value < 0) {
+            return 0;
+        }
+        return value > max ? max : value;
+    }
+
+    /**
+     * Whether the secondary progress is drawn below the primary one; on equal values the
+     * primary progress takes the precedence.
+     */
+    private boolean isNormalOrder(int index) {
+        return mProgress[index] <= mSecondaryProgress[index];
+    }
+
+    /**
+     * Recomputes the pixel edges of a bar after a value change, and invalidates its cell only
+     * if something moved on screen.
+     */
+    private void updateCell(int index, boolean previousNormalOrder) {
+        final int progressEdge = ProgressState.scale(mProgress[index], mMax[index], mCellWidth);
+        final int secondaryEdge = ProgressState.scale(mSecondaryProgress[index], mMax[index], mCellWidth);
+        if (progressEdge != mProgressEdges[index] || secondaryEdge != mSecondaryProgressEdges[index]
+                || isNormalOrder(index) != previousNormalOrder) {
+            mProgressEdges[index] = progressEdge;
+            mSecondaryProgressEdges[index] = secondaryEdge;
+            invalidateCell(index);
+        }
+    }
+
+    private void invalidateCell(int index) {
+        getCellBounds(index, mCellBounds);
+        invalidate(mCellBounds);
+    }
+
+    /**
+     * Fills <tt>outRect</tt> with the bounds of a bar, in view coordinates.
+     */
+    private void getCellBounds(int index, Rect outRect) {
+        final int column = index % mColumnCount;
+        final int row = index / mColumnCount;
+        final int left = getPaddingLeft() + column * (mCellWidth + mBarSpacing);
+        final int top = getPaddingTop() + row * (mBarHeight + mBarSpacing);
+        outRect.set(left, top, left + mCellWidth, top + mBarHeight);
+    }
+
+    /**
+     * Recomputes the cell width from the current size and every pixel edge with it.
+     */
+    private void updateCells() {
+        final int contentWidth = getWidth() - getPaddingLeft() - getPaddingRight();
+        mCellWidth = Math.max(0, (contentWidth - (mColumnCount - 1) * mBarSpacing) / mColumnCount);
+        for (int i = 0; i < mBarCount; i++) {
+            mProgressEdges[i] = ProgressState.scale(mProgress[i], mMax[i], mCellWidth);
+            mSecondaryProgressEdges[i] = ProgressState.scale(mSecondaryProgress[i], mMax[i], mCellWidth);
+        }
+    }
+
+    private int getRowCount() {
+        return (mBarCount + mColumnCount - 1) / mColumnCount;
+    }
+
+    @Override
+    protected void onMeasure(int widthMeasureSpec, int heightMeasureSpec) {
+        final int rows = getRowCount();
+        final int height = rows == 0 ? 0 : rows * mBarHeight + (rows - 1) * mBarSpacing;
+        setMeasuredDimension(getDefaultSize(getSuggestedMinimumWidth(), widthMeasureSpec),
+                resolveSizeAndState(height + getPaddingTop() + getPaddingBottom(), heightMeasureSpec, 0));
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldw, int oldh) {
+        updateCells();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        if (mBarCount == 0 || mCellWidth == 0 || mBarHeight == 0) {
+            return;
+        }
+        final int rowStride = mBarHeight + mBarSpacing;
+        int firstRow = 0;
+        int lastRow = getRowCount() - 1;
+        if (canvas.getClipBounds(mClipBounds)) {
+            firstRow = Math.max(firstRow, (mClipBounds.top - getPaddingTop()) / rowStride);
+            lastRow = Math.min(lastRow, (mClipBounds.bottom - getPaddingTop()) / rowStride);
+        }
+
+        mBatchIndex.clear();
+        mBatchCount = 0;
+        final int last = Math.min(mBarCount - 1, lastRow * mColumnCount + mColumnCount - 1);
+        final float halfHeight = mBarHeight / 2f;
+        for (int i = firstRow * mColumnCount; i <= last; i++) {
+            getCellBounds(i, mCellBounds);
+            final int x = mCellBounds.left;
+            final float y = mCellBounds.top + halfHeight;
+            final int progressEdge = mProgressEdges[i];
+            final int secondaryEdge = mSecondaryProgressEdges[i];
+            // the lower value on top: it fills from the left, the other one from its edge on
+            if (isNormalOrder(i)) {
+                addSpan(mProgressColors[i], x, x + progressEdge, y);
+                addSpan(mSecondaryProgressColors[i], x + progressEdge, x + secondaryEdge, y);
+                addSpan(mTrackColor, x + Math.max(progressEdge, secondaryEdge), x + mCellWidth, y);
+            } else {
+                addSpan(mSecondaryProgressColors[i], x, x + secondaryEdge, y);
+                addSpan(mProgressColors[i], x + secondaryEdge, x + progressEdge, y);
+                addSpan(mTrackColor, x + Math.max(progressEdge, secondaryEdge), x + mCellWidth, y);
+            }
+        }
+
+        for (int b = 0; b < mBatchCount; b++) {
+            mBatchPaint.setColor(mBatchColors[b]);
+            canvas.drawLines(mBatchLines[b], 0, mBatchLengths[b], mBatchPaint);
+        }
+    }
+
+    /**
+     * Appends a horizontal span to the batch of its color. Storage only grows, so once the
+     * buffers are large enough a draw pass does not allocate.
+     */
+    private void addSpan(int color, int left, int right, float y) {
+        if (right <= left) {
+            return;
+        }
+        int batch = mBatchIndex.get(color, -1);
+        if (batch < 0) {
+            batch = mBatchCount++;
+            if (batch == mBatchColors.length) {
+                mBatchColors = Arrays.copyOf(mBatchColors, batch * 2);
+                mBatchLines = Arrays.copyOf(mBatchLines, batch * 2);
+                mBatchLengths = Arrays.copyOf(mBatchLengths, batch * 2);
+            }
+            mBatchIndex.put(color, batch);
+            mBatchColors[batch] = color;
+            mBatchLengths[batch] = 0;
+        }
+        float[] lines = mBatchLines[batch];
+        final int length = mBatchLengths[batch];
+        if (lines == null || length + FLOATS_PER_SPAN > lines.length) {
+            lines = lines == null ? new float[FLOATS_PER_SPAN * 64] : Arrays.copyOf(lines, lines.length * 2);
+            mBatchLines[batch] = lines;
+        }
+        lines[length] = left;
+        lines[length + 1] = y;
+        lines[length + 2] = right;
+        lines[length + 3] = y;
+        mBatchLengths[batch] = length + FLOATS_PER_SPAN;
+    }
+}
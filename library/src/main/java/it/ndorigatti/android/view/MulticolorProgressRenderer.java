@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * Copyright (C) 2014 Nicola Dorigatti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package it.ndorigatti.android.view;
+
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+
+/**
+ * <p>
+ * Draws flat multicolor progress bars into any {@link Canvas}, without a View per bar. A
+ * renderer only holds the shared style (track color, corner radius) and the scratch objects
+ * needed to draw; the values, colors and bounds of each bar come from a {@link BarState}. One
+ * renderer can therefore paint hundreds of bars, e.g. from a custom list row or an item
+ * decoration, with no allocation per bar:
+ * </p>
+ * <pre>
+ * MulticolorProgressRenderer renderer = new MulticolorProgressRenderer();
+ * MulticolorProgressRenderer.BarState bar = new MulticolorProgressRenderer.BarState();
+ * ...
+ * bar.set(totalBytes, downloadedBytes, verifiedBytes, Color.GREEN, Color.BLUE);
+ * bar.bounds.set(left, top, right, bottom);
+ * renderer.draw(canvas, bar);</pre>
+ * <p>
+ * The output is the one of {@link MulticolorProgressBar} in
+ * {@link MulticolorProgressBar#RENDER_MODE_FLAT flat} render mode, which delegates to this
+ * class: lower values are drawn on top of the higher ones, and every pixel is filled once.
+ * A renderer must only be used from one thread at a time.
+ * </p>
+ */
+public class MulticolorProgressRenderer {
+    /**
+     * The maximum number of segments of a bar.
+     */
+    public static final int MAX_SEGMENTS = ProgressState.MAX_SEGMENTS;
+
+    private final Paint mTrackPaint = new Paint();
+    private final Paint[] mSegmentPaints = new Paint[MAX_SEGMENTS];
+    /**
+     * Color last set on each segment paint, so unchanged colors skip the native call.
+     */
+    private final int[] mPaintColors = new int[MAX_SEGMENTS];
+    private float mCornerRadius;
+    private final int[] mEdges = new int[MAX_SEGMENTS];
+    private final int[] mOrder = new int[MAX_SEGMENTS];
+    private final RectF mRect = new RectF();
+
+    /**
+     * Create a renderer with a light gray track and square corners.
+     */
+    public MulticolorProgressRenderer() {
+        mTrackPaint.setColor(Color.LTGRAY);
+        for (int i = 0; i < MAX_SEGMENTS; i++) {
+            mSegmentPaints[i] = new Paint();
+            mPaintColors[i] = mSegmentPaints[i].getColor();
+        }
+    }
+
+    /**
+     * <p>Get the color of the empty part of the bars.</p>
+     *
+     * @return the track color
+     */
+    public int getTrackColor() {
+        return mTrackPaint.getColor();
+    }
+
+    /**
+     * <p>Set the color of the empty part of the bars.</p>
+     *
+     * @param trackColor the new color; must be a valid color.
+     */
+    public void setTrackColor(int trackColor) {
+        mTrackPaint.setColor(trackColor);
+    }
+
+    /**
+     * <p>Get the corner radius of the bars.</p>
+     *
+     * @return the radius, in pixels
+     */
+    public float getCornerRadius() {
+        return mCornerRadius;
+    }
+
+    /**
+     * <p>Set the corner radius of the bars; 0 draws plain rectangles.</p>
+     *
+     * @param cornerRadius the radius, in pixels
+     */
+    public void setCornerRadius(float cornerRadius) {
+        if (cornerRadius < 0) {
+            cornerRadius = 0;
+        }
+        mCornerRadius = cornerRadius;
+        // anti-aliasing is only needed for the rounded corners
+        final boolean antiAlias = cornerRadius > 0;
+        mTrackPaint.setAntiAlias(antiAlias);
+        for (Paint paint : mSegmentPaints) {
+            paint.setAntiAlias(antiAlias);
+        }
+    }
+
+    /**
+     * <p>Draw one bar within its bounds.</p>
+     *
+     * @param canvas the canvas to draw into
+     * @param bar    the values, colors and bounds of the bar
+     */
+    public void draw(Canvas canvas, BarState bar) {
+        final int count = bar.segmentCount;
+        if (count < 1 || count > MAX_SEGMENTS) {
+            throw new IllegalArgumentException("A bar has between 1 and " + MAX_SEGMENTS
+                    + " segments, got " + count);
+        }
+        final Rect bounds = bar.bounds;
+        final int width = bounds.width();
+        final int height = bounds.height();
+        if (width <= 0 || height <= 0) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            mEdges[i] = ProgressState.scale(bar.values[i], bar.max, width);
+        }
+        drawEdges(canvas, bounds.left, bounds.top, width, height, mEdges, count, bar.colors);
+    }
+
+    /**
+     * Draws a bar whose segment edges are already known, in pixels from its left side. The
+     * bar is split into visible spans, walking the segments from the top-most (shortest) one:
+     * each segment only fills the band between the previous edge and its own, the track fills
+     * what is left on the right.
+     */
+    void drawEdges(Canvas canvas, int x, int y, int width, int height, int[] edges, int count, int[] colors) {
+        final int[] order = mOrder;
+        ProgressState.sortDrawOrder(edges, count, order);
+        int left = 0;
+        // the draw order is bottom-most first, walk it backwards
+        for (int i = count - 1; i >= 0 && left < width; i--) {
+            final int index = order[i];
+            final int right = Math.min(edges[index], width);
+            if (right > left) {
+                drawSpan(canvas, x, y, left, right, width, height, segmentPaint(index, colors[index]));
+                left = right;
+            }
+        }
+        if (left < width) {
+            drawSpan(canvas, x, y, left, width, width, height, mTrackPaint);
+        }
+    }
+
+    private Paint segmentPaint(int index, int color) {
+        final Paint paint = mSegmentPaints[index];
+        if (mPaintColors[index] != color) {
+            paint.setColor(color);
+            mPaintColors[index] = color;
+        }
+        return paint;
+    }
+
+    /**
+     * Fills one span. Spans reaching into the rounded ends of the bar draw the round rect of
+     * the whole bar, clipped to the span: the corners keep the radius of the bar however
+     * narrow the span touching them is, and no pixel outside the span is touched.
+     */
+    private void drawSpan(Canvas canvas, int x, int y, int left, int right, int width, int height, Paint paint) {
+        final float radius = Math.min(mCornerRadius, Math.min(width, height) / 2f);
+        if (radius <= 0 || (left >= radius && right <= width - radius)) {
+            canvas.drawRect(x + left, y, x + right, y + height, paint);
+            return;
+        }
+        mRect.set(x, y, x + width, y + height);
+        if (left == 0 && right == width) {
+            canvas.drawRoundRect(mRect, radius, radius, paint);
+            return;
+        }
+        canvas.save();
+        canvas.clipRect(x + left, y, x + right, y + height);
+        canvas.drawRoundRect(mRect, radius, radius, paint);
+        canvas.restore();
+    }
+
+    /**
+     * <p>
+     * What to draw for one bar: the range, the value and color of each segment and the
+     * bounds. A plain mutable holder meant to be reused, e.g. one per list row, or a single
+     * one refilled before drawing each bar.
+     * </p>
+     * <p>
+     * Segment 0 is the primary progress and segment 1 the secondary progress. Values outside
+     * 0...max are drawn clamped.
+     * </p>
+     */
+    public static class BarState {
+        /**
+         * Where the bar is drawn, in canvas coordinates.
+         */
+        public final Rect bounds = new Rect();
+        /**
+         * The value of a full bar.
+         */
+        public long max = 100;
+        /**
+         * The number of segments to draw, from 1 to {@link #MAX_SEGMENTS}.
+         */
+        public int segmentCount = ProgressState.MIN_SEGMENTS;
+        /**
+         * The segment values; only the first {@link #segmentCount} are read.
+         */
+        public final long[] values = new long[MAX_SEGMENTS];
+        /**
+         * The segment colors; only the first {@link #segmentCount} are read.
+         */
+        public final int[] colors = new int[MAX_SEGMENTS];
+
+        /**
+         * <p>Set the range and the two progress segments, like
+         * {@link MulticolorProgressBar#setProgressValues(long, long, long)} does for a view.</p>
+         *
+         * @param max                    the value of a full bar
+         * @param progress               the primary progress
+         * @param secondaryProgress      the secondary progress
+         * @param progressColor          the primary progress color
+         * @param secondaryProgressColor the secondary progress color
+         */
+        public void set(long max, long progress, long secondaryProgress,
+                        int progressColor, int secondaryProgressColor) {
+            this.max = max;
+            segmentCount = ProgressState.MIN_SEGMENTS;
+            values[0] = progress;
+            values[1] = secondaryProgress;
+            colors[0] = progressColor;
+            colors[1] = secondaryProgressColor;
+        }
+
+        /**
+         * <p>Set the value and color of one segment.</p>
+         *
+         * @param index the segment index, 0 being the primary progress
+         * @param value the segment value
+         * @param color the segment color
+         */
+        public void setSegment(int index, long value, int color) {
+            values[index] = value;
+            colors[index] = color;
+        }
+    }
+}
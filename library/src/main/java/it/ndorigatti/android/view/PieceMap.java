@@ -0,0 +1,285 @@
+/*******************************************************************************
+ * Copyright (C) 2014 Nicola Dorigatti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package it.ndorigatti.android.view;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * <p>
+ * State of every piece of a P2P download, and the one pixel tall bitmap it is drawn from.
+ * </p>
+ * <p>
+ * Piece states take two bits each, packed sixteen to an int and changed with a
+ * compare-and-set, so producers on any thread never block. A change marks its word dirty in
+ * a second bit array; on the next frame the UI thread re-colors only the bitmap columns
+ * covering dirty words, with one column per pixel at most (a column showing a run of pieces
+ * is drawn as had if all of them are, as missing if none is had or downloading, as
+ * downloading otherwise). A torrent with a hundred thousand pieces receiving one piece per
+ * millisecond therefore re-colors a handful of pixels per frame.
+ * </p>
+ */
+final class PieceMap {
+    static final int MISSING = 0;
+    static final int DOWNLOADING = 1;
+    static final int HAVE = 2;
+
+    private static final int BITS_PER_PIECE = 2;
+    private static final int PIECES_PER_WORD = 32 / BITS_PER_PIECE;
+    private static final int PIECE_MASK = (1 << BITS_PER_PIECE) - 1;
+
+    private final int mPieceCount;
+    private final AtomicIntegerArray mWords;
+    /**
+     * One bit per word of {@link #mWords} changed since the last update.
+     */
+    private final AtomicIntegerArray mDirtyWords;
+    private final AtomicBoolean mPending = new AtomicBoolean();
+
+    // UI thread only
+    private Bitmap mBitmap;
+    private int mColumnCount;
+    private int[] mColumnColors;
+    /**
+     * One bit per bitmap column to re-color, reused from one update to the next.
+     */
+    private int[] mDirtyColumns;
+    private boolean mAllDirty;
+    private int mHaveColor;
+    private int mDownloadingColor;
+    private int mMissingColor;
+    private int mDirtyLeft;
+    private int mDirtyRight;
+    private final Rect mDst = new Rect();
+    /**
+     * Explicitly unfiltered: hardware accelerated canvases filter bitmaps drawn with a null
+     * paint, which would blur the piece boundaries.
+     */
+    private final Paint mPaint = new Paint();
+
+    PieceMap(int pieceCount) {
+        if (pieceCount < 1) {
+            throw new IllegalArgumentException("A piece map needs at least one piece, got " + pieceCount);
+        }
+        mPieceCount = pieceCount;
+        mPaint.setFilterBitmap(false);
+        final int words = (pieceCount + PIECES_PER_WORD - 1) / PIECES_PER_WORD;
+        mWords = new AtomicIntegerArray(words);
+        mDirtyWords = new AtomicIntegerArray((words + 31) >>> 5);
+    }
+
+    int getPieceCount() {
+        return mPieceCount;
+    }
+
+    int getState(int piece) {
+        checkPiece(piece);
+        return (mWords.get(piece / PIECES_PER_WORD) >>> shiftOf(piece)) & PIECE_MASK;
+    }
+
+    /**
+     * Changes the state of one piece. Can be called from any thread.
+     *
+     * @return true if the caller must schedule an update: nobody else has done it since the
+     * last {@link #update(int, int, int)}
+     */
+    boolean setState(int piece, int state) {
+        checkPiece(piece);
+        if (state < MISSING || state > HAVE) {
+            throw new IllegalArgumentException("Unknown piece state " + state);
+        }
+        final int word = piece / PIECES_PER_WORD;
+        final int shift = shiftOf(piece);
+        int current;
+        int updated;
+        do {
+            current = mWords.get(word);
+            updated = (current & ~(PIECE_MASK << shift)) | (state << shift);
+            if (updated == current) {
+                return false;
+            }
+        } while (!mWords.compareAndSet(word, current, updated));
+        markDirty(word);
+        return mPending.compareAndSet(false, true);
+    }
+
+    private void checkPiece(int piece) {
+        if (piece < 0 || piece >= mPieceCount) {
+            throw new IndexOutOfBoundsException("Piece " + piece + " out of " + mPieceCount);
+        }
+    }
+
+    private static int shiftOf(int piece) {
+        return (piece % PIECES_PER_WORD) * BITS_PER_PIECE;
+    }
+
+    private void markDirty(int word) {
+        final int index = word >>> 5;
+        final int bit = 1 << (word & 31);
+        int current;
+        do {
+            current = mDirtyWords.get(index);
+            if ((current & bit) != 0) {
+                return;
+            }
+        } while (!mDirtyWords.compareAndSet(index, current, current | bit));
+    }
+
+    /**
+     * Sizes the bitmap for a content area of the given width and marks every column dirty.
+     * Must be called on the UI thread.
+     */
+    void layout(int width) {
+        final int columns = Math.min(mPieceCount, Math.max(width, 0));
+        if (columns != mColumnCount) {
+            mColumnCount = columns;
+            mColumnColors = new int[columns];
+            mDirtyColumns = new int[(columns + 31) >>> 5];
+            mBitmap = columns > 0 ? Bitmap.createBitmap(columns, 1, Bitmap.Config.ARGB_8888) : null;
+        }
+        mAllDirty = true;
+    }
+
+    /**
+     * Re-colors the columns covering the pieces changed since the previous update, or every
+     * column if the colors or the layout changed. Must be called on the UI thread.
+     *
+     * @return false if nothing changed; otherwise the re-colored columns are
+     * {@link #getDirtyLeft()} to {@link #getDirtyRight()}
+     */
+    boolean update(int haveColor, int downloadingColor, int missingColor) {
+        mPending.set(false);
+        if (haveColor != mHaveColor || downloadingColor != mDownloadingColor || missingColor != mMissingColor) {
+            mHaveColor = haveColor;
+            mDownloadingColor = downloadingColor;
+            mMissingColor = missingColor;
+            mAllDirty = true;
+        }
+        final int columns = mColumnCount;
+        if (columns == 0) {
+            // keep the pieces dirty until there is something to draw them on
+            return false;
+        }
+        final boolean all = mAllDirty;
+        mAllDirty = false;
+        // drain the dirty words into dirty columns
+        boolean any = all;
+        for (int index = 0; index < mDirtyWords.length(); index++) {
+            int bits = mDirtyWords.getAndSet(index, 0);
+            while (bits != 0 && !all) {
+                final int bit = Integer.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                final long first = (long) ((index << 5) + bit) * PIECES_PER_WORD;
+                final long last = Math.min(first + PIECES_PER_WORD, mPieceCount) - 1;
+                markColumns(columnOf(first, columns), columnOf(last, columns));
+                any = true;
+            }
+        }
+        if (!any) {
+            return false;
+        }
+        mDirtyLeft = Integer.MAX_VALUE;
+        mDirtyRight = Integer.MIN_VALUE;
+        for (int column = 0; column < columns; column++) {
+            final int index = column >>> 5;
+            final int bit = 1 << (column & 31);
+            if (all || (mDirtyColumns[index] & bit) != 0) {
+                mColumnColors[column] = columnColor(column);
+                mDirtyLeft = Math.min(mDirtyLeft, column);
+                mDirtyRight = column;
+            }
+        }
+        Arrays.fill(mDirtyColumns, 0);
+        mBitmap.setPixels(mColumnColors, mDirtyLeft, columns, mDirtyLeft, 0, mDirtyRight - mDirtyLeft + 1, 1);
+        return true;
+    }
+
+    /**
+     * Returns the column showing a piece: the inverse of the partition used by
+     * {@link #columnColor(int)}, where column <tt>c</tt> holds the pieces
+     * <tt>c * pieceCount / columns</tt> (included) to <tt>(c + 1) * pieceCount / columns</tt>
+     * (excluded).
+     */
+    private int columnOf(long piece, int columns) {
+        return (int) (((piece + 1) * columns - 1) / mPieceCount);
+    }
+
+    private void markColumns(int first, int last) {
+        for (int column = first; column <= last; column++) {
+            mDirtyColumns[column >>> 5] |= 1 << (column & 31);
+        }
+    }
+
+    /**
+     * Returns the color of a column: had if all of its pieces are, missing if none is had or
+     * downloading, downloading otherwise.
+     */
+    private int columnColor(int column) {
+        final int first = (int) ((long) column * mPieceCount / mColumnCount);
+        final int end = (int) ((long) (column + 1) * mPieceCount / mColumnCount);
+        int have = 0;
+        int missing = 0;
+        for (int piece = first; piece < end; piece++) {
+            final int state = (mWords.get(piece / PIECES_PER_WORD) >>> shiftOf(piece)) & PIECE_MASK;
+            if (state == HAVE) {
+                have++;
+            } else if (state == MISSING) {
+                missing++;
+            }
+        }
+        final int count = end - first;
+        if (have == count) {
+            return mHaveColor;
+        }
+        return missing == count ? mMissingColor : mDownloadingColor;
+    }
+
+    /**
+     * First column re-colored by the last successful {@link #update(int, int, int)}.
+     */
+    int getDirtyLeft() {
+        return mDirtyLeft;
+    }
+
+    /**
+     * Last column re-colored by the last successful {@link #update(int, int, int)}.
+     */
+    int getDirtyRight() {
+        return mDirtyRight;
+    }
+
+    int getColumnCount() {
+        return mColumnCount;
+    }
+
+    /**
+     * Stretches the bitmap over the given area, without filtering so that pieces keep sharp
+     * edges.
+     */
+    void draw(Canvas canvas, int left, int top, int width, int height) {
+        if (mBitmap != null) {
+            mDst.set(left, top, left + width, top + height);
+            canvas.drawBitmap(mBitmap, null, mDst, mPaint);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+/*******************************************************************************
+ * Copyright (C) 2014 Nicola Dorigatti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package it.ndorigatti.android.view;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Counters describing the update and draw activity of one or more
+ * {@link MulticolorProgressBar}s, for telemetry to poll with {@link #snapshot()}.
+ * </p>
+ * <p>
+ * Metrics are opt-in: a bar without metrics pays a single null check per event. Counters are
+ * lock-free, they can be bumped from any thread. A metrics object created with a parent also
+ * counts everything into the parent, so a screen can hold one instance per bar plus one
+ * aggregate, or simply share a single instance between all of its bars:
+ * </p>
+ * <pre>
+ * ProgressBarMetrics screen = new ProgressBarMetrics();
+ * downloadBar.setMetrics(new ProgressBarMetrics(screen));
+ * uploadBar.setMetrics(new ProgressBarMetrics(screen));
+ * ...
+ * ProgressBarMetrics.Snapshot total = screen.snapshot();</pre>
+ *
+ * @see MulticolorProgressBar#setMetrics(ProgressBarMetrics)
+ */
+public class ProgressBarMetrics {
+    private final ProgressBarMetrics mParent;
+    private final AtomicLong mSetterCalls = new AtomicLong();
+    private final AtomicLong mUpdatesCoalesced = new AtomicLong();
+    private final AtomicLong mUpdatesDropped = new AtomicLong();
+    private final AtomicLong mCrossThreadPosts = new AtomicLong();
+    private final AtomicLong mDrawableSwaps = new AtomicLong();
+    private final AtomicLong mInvalidates = new AtomicLong();
+    private final AtomicLong mDraws = new AtomicLong();
+    private final AtomicLong mDrawNanos = new AtomicLong();
+
+    /**
+     * <p>Create standalone metrics.</p>
+     */
+    public ProgressBarMetrics() {
+        this(null);
+    }
+
+    /**
+     * <p>Create metrics that also count into <tt>parent</tt>.</p>
+     *
+     * @param parent the aggregate to count into as well, or null
+     */
+    public ProgressBarMetrics(ProgressBarMetrics parent) {
+        mParent = parent;
+    }
+
+    /**
+     * <p>Get the aggregate these metrics count into.</p>
+     *
+     * @return the parent, or null
+     */
+    public ProgressBarMetrics getParent() {
+        return mParent;
+    }
+
+    /**
+     * <p>Read every counter. Counters are read one by one while bars keep counting, so two
+     * counters of the same snapshot may be a few events apart.</p>
+     *
+     * @return the current values
+     */
+    public Snapshot snapshot() {
+        return new Snapshot(mSetterCalls.get(), mUpdatesCoalesced.get(), mUpdatesDropped.get(),
+                mCrossThreadPosts.get(), mDrawableSwaps.get(), mInvalidates.get(),
+                mDraws.get(), mDrawNanos.get());
+    }
+
+    /**
+     * <p>Set every counter back to 0. The parent is left alone.</p>
+     */
+    public void reset() {
+        mSetterCalls.set(0);
+        mUpdatesCoalesced.set(0);
+        mUpdatesDropped.set(0);
+        mCrossThreadPosts.set(0);
+        mDrawableSwaps.set(0);
+        mInvalidates.set(0);
+        mDraws.set(0);
+        mDrawNanos.set(0);
+    }
+
+    void onSetterCall() {
+        for (ProgressBarMetrics m = this; m != null; m = m.mParent) {
+            m.mSetterCalls.incrementAndGet();
+        }
+    }
+
+    void onUpdateCoalesced() {
+        for (ProgressBarMetrics m = this; m != null; m = m.mParent) {
+            m.mUpdatesCoalesced.incrementAndGet();
+        }
+    }
+
+    void onUpdateDropped() {
+        for (ProgressBarMetrics m = this; m != null; m = m.mParent) {
+            m.mUpdatesDropped.incrementAndGet();
+        }
+    }
+
+    void onCrossThreadPost() {
+        for (ProgressBarMetrics m = this; m != null; m = m.mParent) {
+            m.mCrossThreadPosts.incrementAndGet();
+        }
+    }
+
+    void onDrawableSwap() {
+        for (ProgressBarMetrics m = this; m != null; m = m.mParent) {
+            m.mDrawableSwaps.incrementAndGet();
+        }
+    }
+
+    void onInvalidate() {
+        for (ProgressBarMetrics m = this; m != null; m = m.mParent) {
+            m.mInvalidates.incrementAndGet();
+        }
+    }
+
+    void onDraw(long nanos) {
+        for (ProgressBarMetrics m = this; m != null; m = m.mParent) {
+            m.mDraws.incrementAndGet();
+            m.mDrawNanos.addAndGet(nanos);
+        }
+    }
+
+    /**
+     * Immutable copy of the counters at one point in time.
+     */
+    public static final class Snapshot {
+        private final long mSetterCalls;
+        private final long mUpdatesCoalesced;
+        private final long mUpdatesDropped;
+        private final long mCrossThreadPosts;
+        private final long mDrawableSwaps;
+        private final long mInvalidates;
+        private final long mDraws;
+        private final long mDrawNanos;
+
+        Snapshot(long setterCalls, long updatesCoalesced, long updatesDropped, long crossThreadPosts,
+                 long drawableSwaps, long invalidates, long draws, long drawNanos) {
+            mSetterCalls = setterCalls;
+            mUpdatesCoalesced = updatesCoalesced;
+            mUpdatesDropped = updatesDropped;
+            mCrossThreadPosts = crossThreadPosts;
+            mDrawableSwaps = drawableSwaps;
+            mInvalidates = invalidates;
+            mDraws = draws;
+            mDrawNanos = drawNanos;
+        }
+
+        /**
+         * <p>Get the counts accumulated between an earlier snapshot and this one.</p>
+         *
+         * @param earlier a snapshot taken before this one, from the same metrics
+         *
+         * @return the difference of every counter
+         */
+        public Snapshot since(Snapshot earlier) {
+            return new Snapshot(mSetterCalls - earlier.mSetterCalls,
+                    mUpdatesCoalesced - earlier.mUpdatesCoalesced,
+                    mUpdatesDropped - earlier.mUpdatesDropped,
+                    mCrossThreadPosts - earlier.mCrossThreadPosts,
+                    mDrawableSwaps - earlier.mDrawableSwaps,
+                    mInvalidates - earlier.mInvalidates,
+                    mDraws - earlier.mDraws,
+                    mDrawNanos - earlier.mDrawNanos);
+        }
+
+        /**
+         * @return calls to the progress, secondary progress, segment value and max setters
+         */
+        public long getSetterCalls() {
+            return mSetterCalls;
+        }
+
+        /**
+         * @return updates merged into a refresh that was already waiting for the next frame
+         */
+        public long getUpdatesCoalesced() {
+            return mUpdatesCoalesced;
+        }
+
+        /**
+         * @return updates that changed nothing on screen: same value, or same pixel
+         */
+        public long getUpdatesDropped() {
+            return mUpdatesDropped;
+        }
+
+        /**
+         * @return refreshes posted to the frame scheduler from a thread other than the UI thread
+         */
+        public long getCrossThreadPosts() {
+            return mCrossThreadPosts;
+        }
+
+        /**
+         * @return swaps between the straight and the reversed drawable caused by order flips
+         */
+        public long getDrawableSwaps() {
+            return mDrawableSwaps;
+        }
+
+        /**
+         * @return invalidations of the bar, whole or partial
+         */
+        public long getInvalidates() {
+            return mInvalidates;
+        }
+
+        /**
+         * @return calls to <tt>onDraw</tt>
+         */
+        public long getDrawCount() {
+            return mDraws;
+        }
+
+        /**
+         * @return the time spent in <tt>onDraw</tt>, in nanoseconds
+         */
+        public long getDrawNanos() {
+            return mDrawNanos;
+        }
+
+        @Override
+        public String toString() {
+            return "ProgressBarMetrics.Snapshot{setterCalls=" + mSetterCalls
+                    + ", updatesCoalesced=" + mUpdatesCoalesced
+                    + ", updatesDropped=" + mUpdatesDropped
+                    + ", crossThreadPosts=" + mCrossThreadPosts
+                    + ", drawableSwaps=" + mDrawableSwaps
+                    + ", invalidates=" + mInvalidates
+                    + ", draws=" + mDraws
+                    + ", drawNanos=" + mDrawNanos + "}";
+        }
+    }
+}
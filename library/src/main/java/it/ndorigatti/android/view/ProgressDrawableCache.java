@@ -0,0 +1,86 @@
+/*******************************************************************************
+ * Copyright (C) 2014 Nicola Dorigatti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package it.ndorigatti.android.view;
+import android.content.res.Resources;
+import android.graphics.drawable.Drawable;
+import android.util.SparseArray;
+
+/**
+ * <p>
+ * Process wide cache of the progress drawable templates, keyed by drawable resource id.
+ * </p>
+ * <p>
+ * Resolving a progress drawable and rebuilding its layers costs a fresh
+ * {@link android.graphics.drawable.LayerDrawable}, its child arrays and the child drawables
+ * for every bar; in a long list this dominates inflation. The first bar using a resource
+ * stores the {@link Drawable.ConstantState} of its rebuilt drawable here, every bar (the
+ * first one included) then gets a {@link Drawable#mutate() mutated} copy of it: bitmaps and
+ * 9-patch data are shared, levels and color filters stay per bar.
+ * </p>
+ * <p>
+ * Templates are tied to the screen density they were loaded for, and replaced when it
+ * changes. Thread safe.
+ * </p>
+ */
+final class ProgressDrawableCache {
+    private static final SparseArray<Template> sTemplates = new SparseArray<Template>();
+
+    private ProgressDrawableCache() {
+    }
+
+    /**
+     * Returns a new private copy of the template cached for the resource, or null if there
+     * is none for the current density.
+     */
+    static Drawable newDrawable(Resources res, int resId) {
+        final Drawable.ConstantState state;
+        synchronized (sTemplates) {
+            final Template template = sTemplates.get(resId);
+            if (template == null || template.densityDpi != res.getDisplayMetrics().densityDpi) {
+                return null;
+            }
+            state = template.state;
+        }
+        return state.newDrawable(res).mutate();
+    }
+
+    /**
+     * Stores <tt>drawable</tt> as the template of the resource, then returns a private copy of
+     * it. The drawable itself must not be changed afterwards: it is the template. Drawables
+     * that cannot be shared are returned as they are, without being cached.
+     */
+    static Drawable putAndCopy(Resources res, int resId, Drawable drawable) {
+        final Drawable.ConstantState state = drawable.getConstantState();
+        if (state == null) {
+            return drawable;
+        }
+        synchronized (sTemplates) {
+            sTemplates.put(resId, new Template(state, res.getDisplayMetrics().densityDpi));
+        }
+        return state.newDrawable(res).mutate();
+    }
+
+    private static final class Template {
+        final Drawable.ConstantState state;
+        final int densityDpi;
+
+        Template(Drawable.ConstantState state, int densityDpi) {
+            this.state = state;
+            this.densityDpi = densityDpi;
+        }
+    }
+}
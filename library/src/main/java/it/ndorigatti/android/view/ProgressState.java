@@ -0,0 +1,242 @@
+/*******************************************************************************
+ * Copyright (C) 2014 Nicola Dorigatti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package it.ndorigatti.android.view;
+
+/**
+ * Immutable snapshot of the values displayed by a {@link MulticolorProgressBar}.
+ * <p>
+ * The bar publishes its snapshot through a single atomic reference: writers on any thread
+ * swap in a new instance with a compare-and-set, readers (such as {@code onDraw}) get a
+ * consistent set of segment values and max without taking a monitor. Values are longs, so
+ * byte counters of multi-gigabyte transfers can be published as they are.
+ * </p>
+ * <p>
+ * Segment 0 is the primary progress and segment 1 the secondary progress; bars with more
+ * segments simply carry more values. Lower values are drawn on top of higher ones, on equal
+ * values the segment with the lower index wins.
+ * </p>
+ */
+final class ProgressState {
+    static final int MIN_SEGMENTS = 2;
+    static final int MAX_SEGMENTS = 8;
+    static final ProgressState DEFAULT = new ProgressState(new long[MIN_SEGMENTS], 100);
+
+    final long progress;
+    final long secondaryProgress;
+    final long max;
+    private final long[] mValues;
+
+    private ProgressState(long[] values, long max) {
+        mValues = values;
+        this.max = max;
+        progress = values[0];
+        secondaryProgress = values[1];
+    }
+
+    private static long clamp(long value, long max) {
+        if (value < 0) {
+            return 0;
+        }
+        return value > max ? max : value;
+    }
+
+    /**
+     * Returns <tt>a + b</tt>, saturated to the long range instead of wrapping around.
+     */
+    static long saturatedAdd(long a, long b) {
+        final long sum = a + b;
+        if (((a ^ sum) & (b ^ sum)) < 0) {
+            return b < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+        }
+        return sum;
+    }
+
+    /**
+     * Returns <tt>floor(value * range / max)</tt> for a value clamped to 0...max, computed
+     * exactly with integer arithmetic over the whole long range. The product only fits in 64
+     * bits for values up to about <tt>Long.MAX_VALUE / range</tt>; past that the multiplication
+     * is carried out bit by bit, keeping the running remainder modulo <tt>max</tt>.
+     *
+     * @param range the number of steps <tt>max</tt> maps to, e.g. a width in pixels or a
+     *              drawable level
+     */
+    static int scale(long value, long max, int range) {
+        if (max <= 0 || range <= 0 || value <= 0) {
+            return 0;
+        }
+        if (value >= max) {
+            return range;
+        }
+        if (value <= Long.MAX_VALUE / range) {
+            return (int) (value * range / max);
+        }
+        // quotient * max + remainder == value * (bits of range seen so far), remainder < max
+        long quotient = 0;
+        long remainder = 0;
+        for (int bit = 31 - Integer.numberOfLeadingZeros(range); bit >= 0; bit--) {
+            quotient <<= 1;
+            if (remainder >= max - remainder) {
+                remainder -= max - remainder;
+                quotient++;
+            } else {
+                remainder <<= 1;
+            }
+            if ((range & (1 << bit)) != 0) {
+                if (remainder >= max - value) {
+                    remainder -= max - value;
+                    quotient++;
+                } else {
+                    remainder += value;
+                }
+            }
+        }
+        return (int) quotient;
+    }
+
+    /**
+     * Returns a snapshot with the given segment values, clamped to 0...max. The array is copied.
+     *
+     * @throws IllegalArgumentException if the number of values is not between
+     *                                  {@link #MIN_SEGMENTS} and {@link #MAX_SEGMENTS}
+     */
+    ProgressState withValues(long[] values) {
+        if (values.length < MIN_SEGMENTS || values.length > MAX_SEGMENTS) {
+            throw new IllegalArgumentException("A progress bar has between " + MIN_SEGMENTS + " and "
+                    + MAX_SEGMENTS + " segments, got " + values.length);
+        }
+        final long[] clamped = new long[values.length];
+        for (int i = 0; i < values.length; i++) {
+            clamped[i] = clamp(values[i], max);
+        }
+        return new ProgressState(clamped, max);
+    }
+
+    /**
+     * Returns a snapshot with the given segment value, clamped to 0...max.
+     * Returns this instance if nothing changes.
+     */
+    ProgressState withValue(int index, long value) {
+        value = clamp(value, max);
+        if (value == mValues[index]) {
+            return this;
+        }
+        final long[] values = mValues.clone();
+        values[index] = value;
+        return new ProgressState(values, max);
+    }
+
+    /**
+     * Returns a snapshot with the given max, clamping every value to the new range.
+     * Returns this instance if nothing changes.
+     */
+    ProgressState withMax(long max) {
+        if (max < 0) {
+            max = 0;
+        }
+        if (max == this.max) {
+            return this;
+        }
+        final long[] values = new long[mValues.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = clamp(mValues[i], max);
+        }
+        return new ProgressState(values, max);
+    }
+
+    /**
+     * Returns a snapshot with the given max, primary and secondary progress, clamping every
+     * value to the new range. Returns this instance if nothing changes.
+     */
+    ProgressState withMaxAndProgress(long max, long progress, long secondaryProgress) {
+        if (max < 0) {
+            max = 0;
+        }
+        progress = clamp(progress, max);
+        secondaryProgress = clamp(secondaryProgress, max);
+        if (max == this.max && progress == this.progress && secondaryProgress == this.secondaryProgress) {
+            return this;
+        }
+        final long[] values = new long[mValues.length];
+        values[0] = progress;
+        values[1] = secondaryProgress;
+        for (int i = MIN_SEGMENTS; i < values.length; i++) {
+            values[i] = clamp(mValues[i], max);
+        }
+        return new ProgressState(values, max);
+    }
+
+    int getSegmentCount() {
+        return mValues.length;
+    }
+
+    long getValue(int index) {
+        return mValues[index];
+    }
+
+    /**
+     * Returns whether colors are drawn in normal order (secondary below primary) or reversed.
+     * If the two values are the same, primary progress takes the precedence.
+     */
+    boolean isNormalColorOrder() {
+        return progress <= secondaryProgress;
+    }
+
+    long valueFor(int id) {
+        return id == android.R.id.secondaryProgress ? secondaryProgress : progress;
+    }
+
+    /**
+     * Fills <tt>order</tt> with the indexes of the first <tt>count</tt> values in drawing
+     * order, bottom-most first: higher values first, on equal values the higher index first so
+     * that the lower index ends on top. An insertion sort over at most {@link #MAX_SEGMENTS}
+     * primitives, no allocation. Used with the values shown while animating.
+     *
+     * @return the number of indexes written
+     */
+    static int sortDrawOrder(long[] values, int count, int[] order) {
+        for (int i = 0; i < count; i++) {
+            int j = i;
+            while (j > 0 && (values[i] > values[order[j - 1]]
+                    || (values[i] == values[order[j - 1]] && i > order[j - 1]))) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+        }
+        return count;
+    }
+
+    /**
+     * Same as {@link #sortDrawOrder(long[], int, int[])} over int values, e.g. the pixel
+     * edges cached by a renderer.
+     */
+    static int sortDrawOrder(int[] values, int count, int[] order) {
+        for (int i = 0; i < count; i++) {
+            int j = i;
+            while (j > 0 && drawsBelow(values, i, order[j - 1])) {
+                order[j] = order[j - 1];
+                j--;
+            }
+            order[j] = i;
+        }
+        return count;
+    }
+
+    private static boolean drawsBelow(int[] values, int a, int b) {
+        return values[a] > values[b] || (values[a] == values[b] && a > b);
+    }
+}
@@ -0,0 +1,91 @@
+/*******************************************************************************
+ * Copyright (C) 2014 Nicola Dorigatti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package it.ndorigatti.android.view;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Trace;
+
+import java.lang.reflect.Method;
+
+/**
+ * Systrace sections and counters around the progress bar hot paths.
+ * <p>
+ * Everything is off by default and call sites test {@link #sEnabled} before calling in, so
+ * that with tracing off the cost is a single branch on a static field. Sections need Jelly
+ * Bean MR2; counters go through the hidden <tt>Trace.traceCounter</tt>, looked up once by
+ * reflection, and are silently left out where it does not exist.
+ * </p>
+ */
+final class ProgressTrace {
+    /**
+     * Read on every hot path without synchronization: meant to be set once, early.
+     */
+    static boolean sEnabled;
+
+    private static final long TRACE_TAG_VIEW = 1L << 3;
+    private static boolean sCounterResolved;
+    private static Method sTraceCounter;
+    private static long sTraceTag = TRACE_TAG_VIEW;
+
+    private ProgressTrace() {
+    }
+
+    static void setEnabled(boolean enabled) {
+        sEnabled = enabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    static void begin(String sectionName) {
+        Trace.beginSection(sectionName);
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    static void end() {
+        Trace.endSection();
+    }
+
+    /**
+     * Emits a counter track value, saturated to the int range.
+     */
+    static void counter(String counterName, long value) {
+        final Method traceCounter = resolveCounter();
+        if (traceCounter == null) {
+            return;
+        }
+        try {
+            traceCounter.invoke(null, sTraceTag, counterName,
+                    (int) Math.max(Integer.MIN_VALUE, Math.min(Integer.MAX_VALUE, value)));
+        } catch (Exception e) {
+            // not what the lookup promised: stop trying
+            sTraceCounter = null;
+        }
+    }
+
+    private static synchronized Method resolveCounter() {
+        if (!sCounterResolved) {
+            sCounterResolved = true;
+            try {
+                sTraceCounter = Trace.class.getMethod("traceCounter", long.class, String.class, int.class);
+                sTraceTag = Trace.class.getField("TRACE_TAG_VIEW").getLong(null);
+            } catch (Exception e) {
+                // hidden API missing or renamed: counters are left out, TRACE_TAG_VIEW is kept
+            }
+        }
+        return sTraceCounter;
+    }
+}
@@ -0,0 +1,125 @@
+/*******************************************************************************
+ * Copyright (C) 2014 Nicola Dorigatti
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ ******************************************************************************/
+
+package it.ndorigatti.android.view;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Latest-value-wins mailbox for progress refreshes waiting for the next frame.
+ * <p>
+ * There is one slot per progress segment (segment 0 being the primary progress layer and
+ * segment 1 the secondary progress layer). Offering a refresh only marks the slot as pending
+ * (remembering whether the change came from the user); the value applied is always the newest
+ * one published in the bar's {@link ProgressState}, so any number of calls between two drains
+ * collapses into a single refresh per layer. All the bookkeeping fits into one atomic int,
+ * memory use is constant no matter how fast producers call.
+ * </p>
+ */
+final class RefreshSlots {
+    static final int SLOT_PROGRESS = 0;
+    static final int SLOT_SECONDARY_PROGRESS = 1;
+    static final int SLOT_COUNT = ProgressState.MAX_SEGMENTS;
+
+    private static final int FROM_USER_SHIFT = 8;
+    private static final int FLAG_POSTED = 1 << 16;
+
+    private final AtomicInteger mBits = new AtomicInteger();
+
+    /**
+     * Maps a slot back to its android layer id.
+     */
+    static int idFor(int slot) {
+        return slot == SLOT_SECONDARY_PROGRESS ? android.R.id.secondaryProgress : android.R.id.progress;
+    }
+
+    /**
+     * Returns the bit mask selecting a single slot, to be combined with other masks and passed
+     * to {@link #offer(int, boolean, boolean)}.
+     */
+    static int maskOf(int slot) {
+        return 1 << slot;
+    }
+
+    /**
+     * Builds the pending bits {@link #drain()} would return after offering <tt>slotMask</tt>,
+     * for callers applying a refresh without going through the mailbox.
+     */
+    static int pendingBits(int slotMask, boolean fromUser) {
+        return fromUser ? slotMask | (slotMask << FROM_USER_SHIFT) : slotMask;
+    }
+
+    static boolean isPending(int bits, int slot) {
+        return (bits & (1 << slot)) != 0;
+    }
+
+    /**
+     * Returns how many slots the given pending bits hold.
+     */
+    static int pendingCount(int bits) {
+        return Integer.bitCount(bits & ((1 << SLOT_COUNT) - 1));
+    }
+
+    static boolean isFromUser(int bits, int slot) {
+        return (bits & (1 << (slot + FROM_USER_SHIFT))) != 0;
+    }
+
+    /**
+     * Marks the given slots as pending, in one atomic step.
+     *
+     * @param slotMask the slots to mark, see {@link #maskOf(int)}
+     * @param canPost whether the caller is able to post a drain right now
+     *
+     * @return true if the caller must post a drain: nobody else has done it since the last
+     * {@link #drain()}
+     */
+    boolean offer(int slotMask, boolean fromUser, boolean canPost) {
+        final int bits = pendingBits(slotMask, fromUser);
+        int current;
+        int updated;
+        do {
+            current = mBits.get();
+            updated = current | bits;
+            if (canPost) {
+                updated |= FLAG_POSTED;
+            }
+            if (updated == current) {
+                return false;
+            }
+        } while (!mBits.compareAndSet(current, updated));
+        return canPost && (current & FLAG_POSTED) == 0;
+    }
+
+    /**
+     * Takes every pending slot, leaving the mailbox empty and ready to be posted again.
+     *
+     * @return the pending bits, to be inspected with {@link #isPending(int, int)} and
+     * {@link #isFromUser(int, int)}; 0 if no slot was pending
+     */
+    int drain() {
+        return mBits.getAndSet(0) & ~FLAG_POSTED;
+    }
+
+    /**
+     * Forgets that a drain was posted, without dropping the pending slots.
+     */
+    void clearPosted() {
+        int current;
+        do {
+            current = mBits.get();
+        } while (!mBits.compareAndSet(current, current & ~FLAG_POSTED));
+    }
+}